@@ -0,0 +1,232 @@
+package ca.yorku.eecs3214.mail.log;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging surface of the mail servers. Events below the level selected with the <code>mail.log.level</code> system
+ * property (default <code>info</code>) are discarded at the call site; in particular, the per-line protocol transcripts
+ * are logged at the <code>trace</code> level and are off by default. Callers building an expensive message should check
+ * <code>isEnabled()</code> first.
+ * <p>
+ * Logging a message never blocks the caller: each event, with its time, level and thread, is added to a bounded ring
+ * buffer shared by all threads, without taking any lock, and a single background thread formats the events and writes
+ * them to the standard output, one line per event. If the buffer is full, i.e., events are logged faster than they can
+ * be written, new events are discarded, and the number of discarded events is logged once there is room again. The
+ * buffer holds <code>mail.log.bufferSize</code> (default 8192) events, rounded up to a power of two. Events still in
+ * the buffer when the JVM exits normally are written before it does: the background thread is stopped once it has
+ * written what it had taken from the buffer, and whatever is left is written through the same output.
+ */
+public final class Log {
+
+    /**
+     * Severity of a log event, from the most to the least verbose.
+     */
+    public enum Level {
+        TRACE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("mail.log.level", "info").toUpperCase());
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("mail.log.bufferSize", 8192) - 1)) << 1;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+    // Next sequence number to be claimed by a producer, and next to be consumed by the writer
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Time the shutdown hook waits for the writer to stop before draining the buffer itself
+    private static final long EXIT_TIMEOUT_MILLIS = 1000;
+
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+    private static final Thread writer;
+    private static volatile boolean writerParked = false;
+    private static volatile boolean stopping = false;
+
+    static {
+        writer = Thread.ofPlatform().daemon().name("log-writer").unstarted(Log::run);
+        if (LEVEL != Level.OFF) {
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(Thread.ofPlatform().unstarted(Log::drainOnExit));
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Checks if events of a specified level are logged.
+     *
+     * @param level The level of the event.
+     * @return true if events of this level are logged, and false if they are discarded.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static void trace(String message) {
+        log(Level.TRACE, message, null);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable cause) {
+        log(Level.WARN, message, cause);
+    }
+
+    public static void error(String message, Throwable cause) {
+        log(Level.ERROR, message, cause);
+    }
+
+    /**
+     * Logs an event, if its level is enabled.
+     *
+     * @param level   The level of the event.
+     * @param message The message describing the event.
+     * @param cause   The exception that caused the event, whose stack trace is included in the log, or null.
+     */
+    public static void log(Level level, String message, Throwable cause) {
+        if (!isEnabled(level))
+            return;
+        Event event = new Event(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, cause);
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        slots.set((int) sequence & MASK, event);
+        if (writerParked)
+            LockSupport.unpark(writer);
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                if (!drain(out)) {
+                    out.flush();
+                    if (stopping)
+                        return;
+                    writerParked = true;
+                    // An event may have been published, or the JVM started exiting, just before the flag was set
+                    if (tail.get() == head && !stopping)
+                        LockSupport.park(Log.class);
+                    writerParked = false;
+                }
+            } catch (IOException e) {
+                // The standard output is gone, nothing else can be logged
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the events available in the buffer, if any.
+     *
+     * @return true if at least one event was written, and false if the buffer was empty.
+     */
+    private static synchronized boolean drain(Writer out) throws IOException {
+        boolean written = false;
+        long missed = dropped.getAndSet(0);
+        if (missed > 0) {
+            format(out, new Event(System.currentTimeMillis(), Level.WARN, "log-writer", missed + " log events discarded, buffer full", null));
+            written = true;
+        }
+        long sequence = head;
+        while (sequence != tail.get()) {
+            int index = (int) sequence & MASK;
+            Event event = slots.get(index);
+            if (event == null) {
+                // Slot claimed, but the producer has not published its event yet
+                Thread.onSpinWait();
+                continue;
+            }
+            slots.set(index, null);
+            head = ++sequence;
+            format(out, event);
+            written = true;
+        }
+        return written;
+    }
+
+    private static void drainOnExit() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(EXIT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Events logged by other shutdown hooks, or left behind if the writer did not stop in time, go through the same
+        // writer, after everything it has buffered
+        try {
+            synchronized (Log.class) {
+                drain(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Nothing else to do
+        }
+    }
+
+    private static void format(Writer out, Event event) throws IOException {
+        out.write(Instant.ofEpochMilli(event.time).toString());
+        out.write(' ');
+        out.write(event.level.name());
+        out.write(" [");
+        out.write(event.thread);
+        out.write("] ");
+        out.write(event.message);
+        out.write(System.lineSeparator());
+        if (event.cause != null) {
+            PrintWriter trace = new PrintWriter(out);
+            event.cause.printStackTrace(trace);
+            trace.flush();
+        }
+    }
+
+    private static class Event {
+        private final long time;
+        private final Level level;
+        private final String thread;
+        private final String message;
+        private final Throwable cause;
+
+        Event(long time, Level level, String thread, String message, Throwable cause) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import ca.yorku.eecs3214.mail.log.Log;
+import ca.yorku.eecs3214.mail.metrics.Counter;
+import ca.yorku.eecs3214.mail.metrics.Gauge;
+import ca.yorku.eecs3214.mail.metrics.Histogram;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of accepted messages waiting to be delivered to their recipients' mailboxes, used when the system property
+ * <code>mail.delivery.async</code> is true. Accepting a message only moves its spool file into the queue directory and
+ * appends one record with its recipients to the queue journal, so the time taken to accept a message does not depend on
+ * the number of recipients or on how busy the mailboxes are. A pool of <code>mail.delivery.workers</code> threads
+ * (default 4) then delivers the messages in the background.
+ * <p>
+ * A delivery that fails is retried after <code>mail.delivery.retryDelayMillis</code> (default 1000), doubling the delay
+ * on every attempt, up to <code>mail.delivery.maxAttempts</code> attempts (default 5); messages that still cannot be
+ * delivered are moved to the <code>failed</code> subdirectory of the queue. Each attempt delivers to all the remaining
+ * recipients at once (see <code>MailWriter.deliverEach()</code>), but a failing mailbox does not hold up the others,
+ * and only the recipients that were not reached are retried. An unexpected error during an attempt is logged, and the
+ * message is retried in the same way. At most <code>mail.delivery.queueCapacity</code> messages (default 10000) are
+ * queued at a time; when the queue is full, new messages are refused, and the client is expected to try again later.
+ * <p>
+ * The journal is made durable together with the message, according to the durability mode (see
+ * {@link GroupCommitter}). When the queue is first used, messages that were accepted but not completely delivered
+ * before the server stopped are queued again. Before a partially delivered message is retried, the recipients it
+ * reached are recorded in the journal, so after a restart it is only delivered to the recipients still missing it. A
+ * message whose journal record cannot be made durable is removed from the queue again, since the client is told that
+ * it was not accepted.
+ */
+public class DeliveryQueue {
+
+    public static final boolean ENABLED = Boolean.getBoolean("mail.delivery.async");
+    public static final File QUEUE_DIRECTORY = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, ".queue");
+
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String FAILED_DIRECTORY_NAME = "failed";
+    private static final String MESSAGE_SUFFIX = ".msg";
+
+    private static final int WORKERS = Math.max(1, Integer.getInteger("mail.delivery.workers", 4));
+    private static final int CAPACITY = Integer.getInteger("mail.delivery.queueCapacity", 10000);
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("mail.delivery.maxAttempts", 5));
+    private static final long RETRY_DELAY_MILLIS = Long.getLong("mail.delivery.retryDelayMillis", 1000);
+
+    private static final Gauge QUEUED = Metrics.gauge("mail_queue_messages", "", "Messages waiting to be delivered.");
+    private static final Counter RETRIES = Metrics.counter("mail_queue_retries_total", "", "Delivery attempts retried.");
+    private static final Counter FAILURES = Metrics.counter("mail_queue_failed_total", "",
+            "Messages moved to the failed directory after their last attempt.");
+    private static final Histogram QUEUE_TIME = Metrics.histogram("mail_queue_duration_seconds", "",
+            "Time from acceptance to complete delivery of queued messages.", 1e-9);
+
+    private static volatile DeliveryQueue instance;
+
+    private final Path journal;
+    private final FileChannel journalChannel;
+    private final Semaphore capacity;
+    private final ScheduledExecutorService workers;
+    private final String idPrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final AtomicLong nextId = new AtomicLong();
+    private int pending;
+
+    private DeliveryQueue() throws IOException {
+        Path directory = QUEUE_DIRECTORY.toPath();
+        Files.createDirectories(directory);
+        this.journal = directory.resolve(JOURNAL_FILE_NAME);
+        List<Entry> recovered = recover(directory);
+        this.journalChannel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.pending = recovered.size();
+        // Recovered messages may exceed the capacity, in which case no new message is accepted until enough of them
+        // are delivered
+        this.capacity = new Semaphore(CAPACITY - recovered.size());
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(WORKERS,
+                Thread.ofPlatform().daemon().name("delivery-", 0).factory());
+        executor.setRemoveOnCancelPolicy(true);
+        this.workers = executor;
+        for (Entry entry : recovered) {
+            QUEUED.increment();
+            workers.execute(() -> attempt(entry));
+        }
+        if (!recovered.isEmpty())
+            Log.info("Queued " + recovered.size() + " messages not delivered before the server stopped");
+    }
+
+    /**
+     * Returns the delivery queue of this server, recovering any messages left in the queue by a previous run the first
+     * time it is called.
+     *
+     * @return The delivery queue.
+     * @throws IOException If the queue directory or journal cannot be read or created.
+     */
+    public static DeliveryQueue getInstance() throws IOException {
+        DeliveryQueue queue = instance;
+        if (queue != null)
+            return queue;
+        synchronized (DeliveryQueue.class) {
+            if (instance == null)
+                instance = new DeliveryQueue();
+            return instance;
+        }
+    }
+
+    /**
+     * Adds a message to the queue. The file with the message content is moved into the queue, so it must be in the
+     * same file system as the mail storage. Once this method returns, the message will be delivered even if the server
+     * stops before that happens.
+     *
+     * @param content    The file with the message content. It must not be modified or used after this call.
+     * @param recipients The mailboxes where the message will be saved.
+     * @throws QueueFullException If the maximum number of messages are already queued.
+     * @throws IOException        If the message cannot be added to the queue.
+     */
+    public void enqueue(Path content, Collection<Mailbox> recipients) throws IOException {
+        if (!capacity.tryAcquire())
+            throw new QueueFullException();
+        Entry entry;
+        try {
+            String id = idPrefix + nextId.getAndIncrement();
+            Path file = QUEUE_DIRECTORY.toPath().resolve(id + MESSAGE_SUFFIX);
+            Files.move(content, file, StandardCopyOption.ATOMIC_MOVE);
+            List<String> addresses = new ArrayList<>(recipients.size());
+            for (Mailbox mailbox : recipients)
+                addresses.add(mailbox.getUsername());
+            StringBuilder record = new StringBuilder("Q ").append(id);
+            for (String address : addresses)
+                record.append(' ').append(address);
+            synchronized (this) {
+                append(record);
+                pending++;
+            }
+            entry = new Entry(id, file, addresses, System.nanoTime());
+        } catch (IOException | RuntimeException e) {
+            capacity.release();
+            throw e;
+        }
+        QUEUED.increment();
+        try {
+            GroupCommitter.commit(List.of(entry.file.toFile(), journal.toFile()));
+        } catch (IOException | RuntimeException e) {
+            // The client is told that the message was not accepted, so it must not be delivered later. The file is
+            // removed first, so the message is not delivered on recovery even if its removal record is lost.
+            try {
+                Files.deleteIfExists(entry.file);
+                removeFromJournal(entry);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            } finally {
+                QUEUED.decrement();
+                capacity.release();
+            }
+            throw e;
+        }
+        workers.execute(() -> attempt(entry));
+    }
+
+    private void attempt(Entry entry) {
+        entry.attempts++;
+        List<String> delivered = new ArrayList<>(entry.recipients.size());
+        Exception failure;
+        try {
+            failure = deliver(entry, delivered);
+        } catch (RuntimeException e) {
+            // Not an expected delivery failure, but the message is still retried rather than left in the queue
+            Log.error("Unexpected error delivering message " + entry.id, e);
+            failure = e;
+        }
+
+        if (entry.recipients.isEmpty()) {
+            complete(entry, false);
+        } else if (entry.attempts >= MAX_ATTEMPTS) {
+            Log.error("Message " + entry.id + " could not be delivered to " + entry.recipients + " after " +
+                    entry.attempts + " attempts", failure);
+            complete(entry, true);
+        } else {
+            long delay = RETRY_DELAY_MILLIS << Math.min(entry.attempts - 1, 20);
+            Log.warn("Delivery of message " + entry.id + " failed, retrying in " + delay + " ms: " +
+                    (failure == null ? "unknown error" : failure.getMessage()));
+            RETRIES.increment();
+            if (!delivered.isEmpty())
+                recordDelivered(entry, delivered);
+            workers.schedule(() -> attempt(entry), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Delivers a message to all the recipients it has not reached yet at once, removing from the entry those it
+     * reaches, or that no longer exist.
+     *
+     * @param delivered Receives the addresses of the recipients the message was delivered to.
+     * @return The exception that prevented the delivery to some recipient, or null if there was none.
+     */
+    private Exception deliver(Entry entry, List<String> delivered) {
+        List<Mailbox> mailboxes = new ArrayList<>(entry.recipients.size());
+        for (Iterator<String> iterator = entry.recipients.iterator(); iterator.hasNext(); ) {
+            String recipient = iterator.next();
+            try {
+                mailboxes.add(new Mailbox(recipient));
+            } catch (Mailbox.InvalidUserException e) {
+                Log.warn("Message " + entry.id + " not delivered to " + recipient + ": user no longer exists");
+                iterator.remove();
+            }
+        }
+        if (mailboxes.isEmpty())
+            return null;
+
+        Map<Mailbox, Exception> failures;
+        try {
+            failures = MailWriter.deliverEach(entry.file, mailboxes, MailWriter.DEFAULT_MODE);
+        } catch (IOException e) {
+            return e;
+        }
+        Exception failure = null;
+        for (Mailbox mailbox : mailboxes) {
+            Exception e = failures.get(mailbox);
+            if (e == null) {
+                entry.recipients.remove(mailbox.getUsername());
+                delivered.add(mailbox.getUsername());
+            } else {
+                failure = e;
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Records in the journal the recipients a message was delivered to, so they do not receive it again if the server
+     * stops before the remaining recipients are reached.
+     */
+    private void recordDelivered(Entry entry, List<String> delivered) {
+        StringBuilder record = new StringBuilder("R ").append(entry.id);
+        for (String address : delivered)
+            record.append(' ').append(address);
+        try {
+            synchronized (this) {
+                append(record);
+            }
+            GroupCommitter.commit(List.of(journal.toFile()));
+        } catch (IOException e) {
+            Log.warn("Could not record the recipients of message " + entry.id + ", they may receive it again: " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Removes a message from the queue, either because it was delivered or because it failed permanently.
+     */
+    private void complete(Entry entry, boolean failed) {
+        try {
+            if (failed) {
+                Path failedDirectory = Files.createDirectories(QUEUE_DIRECTORY.toPath().resolve(FAILED_DIRECTORY_NAME));
+                Files.move(entry.file, failedDirectory.resolve(entry.file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                FAILURES.increment();
+            } else {
+                Files.deleteIfExists(entry.file);
+                QUEUE_TIME.recordSince(entry.enqueuedNanos);
+            }
+            removeFromJournal(entry);
+        } catch (IOException e) {
+            // The message will be delivered again when the queue is recovered
+            Log.error("Could not remove message " + entry.id + " from the delivery queue", e);
+        } finally {
+            QUEUED.decrement();
+            capacity.release();
+        }
+    }
+
+    private synchronized void removeFromJournal(Entry entry) throws IOException {
+        append(new StringBuilder("D ").append(entry.id));
+        // Once nothing is pending the journal holds no useful records, so it is started over
+        if (--pending == 0)
+            journalChannel.truncate(0);
+    }
+
+    private void append(StringBuilder record) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(record.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            journalChannel.write(bytes);
+    }
+
+    /**
+     * Reads the journal left by a previous run, returning the messages still to be delivered, and replaces it with a
+     * journal listing only those messages. Message files that are not in the journal belong to messages that were
+     * never acknowledged to the client, and are removed.
+     *
+     * @param directory The queue directory, containing the journal and the message files.
+     * @return The messages still to be delivered, each with the recipients it has not reached yet.
+     * @throws IOException If the journal cannot be read or replaced.
+     */
+    static List<Entry> recover(Path directory) throws IOException {
+        Path journal = directory.resolve(JOURNAL_FILE_NAME);
+        Map<String, List<String>> queued = new LinkedHashMap<>();
+        if (Files.exists(journal)) {
+            String[] lines = Files.readString(journal, StandardCharsets.UTF_8).split("\n", -1);
+            // The last element follows the last line terminator, so it is either empty or a record cut short by a
+            // crash, which was never acknowledged
+            for (int i = 0; i < lines.length - 1; i++) {
+                String[] fields = lines[i].split(" ");
+                if (fields.length >= 2 && fields[0].equals("Q"))
+                    queued.put(fields[1], new ArrayList<>(Arrays.asList(fields).subList(2, fields.length)));
+                else if (fields.length >= 3 && fields[0].equals("R") && queued.containsKey(fields[1]))
+                    queued.get(fields[1]).removeAll(Arrays.asList(fields).subList(2, fields.length));
+                else if (fields.length == 2 && fields[0].equals("D"))
+                    queued.remove(fields[1]);
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        StringBuilder rewritten = new StringBuilder();
+        for (Map.Entry<String, List<String>> message : queued.entrySet()) {
+            Path file = directory.resolve(message.getKey() + MESSAGE_SUFFIX);
+            if (!Files.exists(file)) {
+                Log.warn("Queued message " + message.getKey() + " is missing and will not be delivered");
+                continue;
+            }
+            entries.add(new Entry(message.getKey(), file, message.getValue(), System.nanoTime()));
+            rewritten.append("Q ").append(message.getKey());
+            for (String recipient : message.getValue())
+                rewritten.append(' ').append(recipient);
+            rewritten.append('\n');
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + MESSAGE_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!queued.containsKey(name.substring(0, name.length() - MESSAGE_SUFFIX.length())))
+                    Files.delete(file);
+            }
+        }
+
+        Path temporary = directory.resolve(JOURNAL_FILE_NAME + ".tmp");
+        Files.writeString(temporary, rewritten, StandardCharsets.UTF_8);
+        Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        GroupCommitter.commit(List.of(journal.toFile()));
+        return entries;
+    }
+
+    /**
+     * A queued message.
+     */
+    static class Entry {
+        final String id;
+        final Path file;
+        final List<String> recipients;
+        private final long enqueuedNanos;
+        private int attempts = 0;
+
+        Entry(String id, Path file, List<String> recipients, long enqueuedNanos) {
+            this.id = id;
+            this.file = file;
+            this.recipients = recipients;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Thrown when a message cannot be queued because the maximum number of messages are already queued.
+     */
+    public static class QueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QueueFullException() {
+            super("Delivery queue is full");
+        }
+    }
+}
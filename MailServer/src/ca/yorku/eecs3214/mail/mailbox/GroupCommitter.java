@@ -0,0 +1,182 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes delivered messages durable, i.e., forces their content and their directory entries to disk, according to the
+ * durability mode selected with the <code>mail.durability</code> system property:
+ * <ul>
+ *     <li><code>none</code> (default): nothing is forced, and messages may be lost if the system fails shortly after
+ *     they are accepted;</li>
+ *     <li><code>sync</code>: each delivery forces its own files before returning;</li>
+ *     <li><code>group</code>: deliveries from all sessions are handed to a single commit thread, which forces the files
+ *     of all pending deliveries as one batch, and only then lets each of them return. A batch is started as soon as
+ *     the previous one is complete, so under load a single round of forcing covers many deliveries. A delivery whose
+ *     files cannot be forced fails on its own, without affecting the others in the batch.</li>
+ * </ul>
+ * In group mode, <code>mail.durability.maxDelayMillis</code> (default 0) is how long the commit thread waits for more
+ * deliveries before starting a batch, and <code>mail.durability.maxBatch</code> (default 1024) is the maximum number of
+ * deliveries in a batch.
+ */
+public class GroupCommitter {
+
+    /**
+     * Durability guarantee provided for delivered messages.
+     */
+    public enum Durability {
+        NONE,
+        SYNC,
+        GROUP
+    }
+
+    public static final Durability DURABILITY =
+            Durability.valueOf(System.getProperty("mail.durability", "none").toUpperCase());
+
+    private static final long MAX_DELAY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("mail.durability.maxDelayMillis", 0));
+    private static final int MAX_BATCH = Integer.getInteger("mail.durability.maxBatch", 1024);
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private GroupCommitter() {
+        Thread.ofPlatform().daemon().name("group-commit").start(this::run);
+    }
+
+    /**
+     * Makes a set of newly delivered message files durable, according to the configured durability mode. Returns once
+     * the files, and the directories containing them, have been forced to disk.
+     *
+     * @param files The message files to be made durable.
+     * @throws IOException If the files cannot be forced to disk.
+     */
+    public static void commit(Collection<File> files) throws IOException {
+        if (DURABILITY == Durability.SYNC)
+            force(files);
+        else if (DURABILITY == Durability.GROUP)
+            Holder.INSTANCE.commitAndWait(files);
+    }
+
+    private void commitAndWait(Collection<File> files) throws IOException {
+        Request request = new Request(files);
+        queue.add(request);
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Not expected, complete whatever was collected so far
+            }
+
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces the files of a batch of requests to disk, and completes each request. The files of each request are
+     * forced separately, so a file that cannot be forced only fails the request it belongs to; the directories are
+     * forced once for the whole batch, before any request is completed.
+     */
+    static void commitBatch(List<Request> batch) {
+        Set<Path> directories = new LinkedHashSet<>();
+        List<Request> forced = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            try {
+                forceFiles(request.files, directories);
+                forced.add(request);
+            } catch (IOException e) {
+                request.done.completeExceptionally(e);
+            }
+        }
+        forceDirectories(directories);
+        for (Request request : forced)
+            request.done.complete(null);
+    }
+
+    /**
+     * Forces the content of a set of files, and the directories containing them, to disk. Each directory is forced
+     * only once, regardless of how many of the files it contains.
+     */
+    private static void force(Collection<File> files) throws IOException {
+        Set<Path> directories = new LinkedHashSet<>();
+        forceFiles(files, directories);
+        forceDirectories(directories);
+    }
+
+    /**
+     * Forces the content of a set of files to disk, and adds the directories containing them to a set. A file that no
+     * longer exists, e.g., a message already deleted by a POP3 session, needs nothing more and is not an error.
+     */
+    private static void forceFiles(Collection<File> files, Set<Path> directories) throws IOException {
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Nothing to make durable
+            }
+            Path directory = file.toPath().toAbsolutePath().getParent();
+            if (directory != null)
+                directories.add(directory);
+        }
+    }
+
+    private static void forceDirectories(Set<Path> directories) {
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms cannot open or force directories; the file content is durable regardless
+            }
+        }
+    }
+
+    private static class Holder {
+        private static final GroupCommitter INSTANCE = new GroupCommitter();
+    }
+
+    static class Request {
+        private final Collection<File> files;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(Collection<File> files) {
+            this.files = files;
+        }
+    }
+}
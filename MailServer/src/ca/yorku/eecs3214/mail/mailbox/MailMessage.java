@@ -1,15 +1,37 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * An individual mail message.
+ * <p>
+ * The content of a message is accessed through a memory-mapped view of its file, so only the pages actually used are
+ * read. The offset where the headers end and the number of lines in the body are computed the first time they are
+ * needed, and kept in memory and, for messages loaded from a mailbox, in a small metadata file, so that e.g. listing
+ * the headers of every message only reads the headers themselves.
+ * <p>
+ * Messages stored compressed (see {@link MessageCompression}) cannot be mapped; their content is read through
+ * <code>openContent()</code>, which decompresses it as it is read. Their size is stored in the file header, so it is
+ * known without decompressing them.
  */
 public class MailMessage {
 
     private final File file;
     private final long fileSize;
+    private final File metadataFile;
     private boolean deleted;
+    private long headerLength = -1;
+    private long bodyLineCount = -1;
+    private boolean metadataRead = false;
 
     /**
      * Creates a new mail message object whose content can be retrieved from a specified file.
@@ -17,8 +39,32 @@ public class MailMessage {
      * @param file The file object where the file content is found.
      */
     public MailMessage(File file) {
+        this(file, MessageCompression.contentSize(file));
+    }
+
+    /**
+     * Creates a new mail message object whose size is already known, e.g., from the mailbox index, so the file does
+     * not need to be checked.
+     *
+     * @param file     The file object where the file content is found.
+     * @param fileSize The number of bytes in the mail message, including headers.
+     */
+    public MailMessage(File file, long fileSize) {
+        this(file, fileSize, null);
+    }
+
+    /**
+     * Creates a new mail message object whose header offset and line count are cached in a metadata file.
+     *
+     * @param file         The file object where the file content is found.
+     * @param fileSize     The number of bytes in the mail message, including headers.
+     * @param metadataFile The file where the header offset and line count are cached, or null if they are only cached
+     *                     in memory.
+     */
+    MailMessage(File file, long fileSize, File metadataFile) {
         this.file = file;
-        this.fileSize = file.length();
+        this.fileSize = fileSize;
+        this.metadataFile = metadataFile;
         this.deleted = false;
     }
 
@@ -32,7 +78,8 @@ public class MailMessage {
     }
 
     /**
-     * Returns the number of bytes in the mail message, including headers.
+     * Returns the number of bytes in the mail message, including headers. For a compressed message, this is the size
+     * of the uncompressed content.
      *
      * @return The size of the mail message, in bytes.
      */
@@ -65,4 +112,212 @@ public class MailMessage {
     public void undelete() {
         this.deleted = false;
     }
+
+    /**
+     * Returns the number of bytes in the headers of the message, including the empty line that separates them from the
+     * body. If the message has no body, this is the size of the whole message.
+     *
+     * @return The offset of the body of the message, in bytes.
+     * @throws IOException If the message file cannot be read.
+     */
+    public long getHeaderLength() throws IOException {
+        readMetadata();
+        if (headerLength < 0 && isCompressed()) {
+            scanContent();
+        } else if (headerLength < 0) {
+            ByteBuffer content = map();
+            headerLength = content.limit();
+            boolean lineEmpty = true;
+            for (int i = 0; i < content.limit(); i++) {
+                byte b = content.get(i);
+                if (b == '\n') {
+                    if (lineEmpty) {
+                        headerLength = i + 1;
+                        break;
+                    }
+                    lineEmpty = true;
+                } else if (b != '\r') {
+                    lineEmpty = false;
+                }
+            }
+            writeMetadata();
+        }
+        return headerLength;
+    }
+
+    /**
+     * Returns the number of lines in the body of the message. A last line without a line terminator is counted as a
+     * line.
+     *
+     * @return The number of lines after the headers.
+     * @throws IOException If the message file cannot be read.
+     */
+    public long getBodyLineCount() throws IOException {
+        readMetadata();
+        if (bodyLineCount < 0 && isCompressed()) {
+            scanContent();
+        } else if (bodyLineCount < 0) {
+            ByteBuffer content = map();
+            int start = (int) getHeaderLength();
+            long lines = 0;
+            for (int i = start; i < content.limit(); i++) {
+                if (content.get(i) == '\n')
+                    lines++;
+            }
+            if (content.limit() > start && content.get(content.limit() - 1) != '\n')
+                lines++;
+            bodyLineCount = lines;
+            writeMetadata();
+        }
+        return bodyLineCount;
+    }
+
+    /**
+     * Returns a read-only, memory-mapped view of the content of the message. A compressed message cannot be mapped, so
+     * its content is decompressed into a heap buffer instead; <code>openContent()</code> should be preferred for those.
+     *
+     * @return A buffer with the whole content of the message.
+     * @throws IOException If the message file cannot be mapped.
+     */
+    public ByteBuffer map() throws IOException {
+        return map(fileSize);
+    }
+
+    /**
+     * Returns true if the message is stored compressed, in which case its content should be read with
+     * <code>openContent()</code> rather than mapped.
+     *
+     * @return true if the message file is compressed, and false otherwise.
+     */
+    public boolean isCompressed() {
+        return MessageCompression.isCompressed(file.toPath());
+    }
+
+    /**
+     * Opens a stream with the content of the message, decompressing it as it is read if the message is stored
+     * compressed.
+     *
+     * @return A stream with the whole content of the message. Must be closed by the caller.
+     * @throws IOException If the message file cannot be opened.
+     */
+    public InputStream openContent() throws IOException {
+        return MessageCompression.open(file.toPath(), isCompressed());
+    }
+
+    /**
+     * Returns a read-only, memory-mapped view of the headers of the message and the first lines of its body, as
+     * returned by the POP3 TOP command.
+     *
+     * @param bodyLines The number of lines of the body to be included.
+     * @return A buffer with the headers and the requested part of the body.
+     * @throws IOException If the message file cannot be mapped.
+     */
+    public ByteBuffer mapTop(long bodyLines) throws IOException {
+        long start = getHeaderLength();
+        if (bodyLines <= 0)
+            return map(start);
+        if (bodyLineCount >= 0 && bodyLines >= bodyLineCount)
+            return map();
+        ByteBuffer content = map();
+        for (int i = (int) start; i < content.limit(); i++) {
+            if (content.get(i) == '\n' && --bodyLines == 0)
+                return content.limit(i + 1);
+        }
+        return content;
+    }
+
+    private ByteBuffer map(long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Message too large to be mapped: " + file);
+        if (isCompressed()) {
+            try (InputStream in = openContent()) {
+                return ByteBuffer.wrap(in.readNBytes((int) length)).asReadOnlyBuffer();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, channel.size()));
+        }
+    }
+
+    /**
+     * Computes the header length and the body line count of a compressed message in a single pass over its content,
+     * with the same rules as for mapped messages.
+     */
+    private void scanContent() throws IOException {
+        long position = 0;
+        long header = -1;
+        long lines = 0;
+        boolean lineEmpty = true;
+        byte last = '\n';
+        try (InputStream in = openContent()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                for (int i = 0; i < count; i++, position++) {
+                    byte b = buffer[i];
+                    if (header < 0) {
+                        if (b == '\n') {
+                            if (lineEmpty)
+                                header = position + 1;
+                            lineEmpty = true;
+                        } else if (b != '\r') {
+                            lineEmpty = false;
+                        }
+                    } else if (b == '\n') {
+                        lines++;
+                    }
+                    last = b;
+                }
+            }
+        }
+        if (header < 0)
+            header = position;
+        else if (position > header && last != '\n')
+            lines++;
+        headerLength = header;
+        bodyLineCount = lines;
+        writeMetadata();
+    }
+
+    /**
+     * Removes the metadata file of the message, if any. Used when the message itself is deleted.
+     */
+    void deleteMetadata() {
+        if (metadataFile != null)
+            //noinspection ResultOfMethodCallIgnored
+            metadataFile.delete();
+    }
+
+    private void readMetadata() {
+        if (metadataRead || metadataFile == null)
+            return;
+        metadataRead = true;
+        if (!metadataFile.isFile())
+            return;
+        try {
+            String[] fields = Files.readString(metadataFile.toPath(), StandardCharsets.UTF_8).trim().split(" ");
+            // Metadata for a different version of the file is ignored
+            if (fields.length == 3 && Long.parseLong(fields[0]) == fileSize) {
+                headerLength = Long.parseLong(fields[1]);
+                bodyLineCount = Long.parseLong(fields[2]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The metadata is only a cache, it will be computed again
+        }
+    }
+
+    private void writeMetadata() {
+        if (metadataFile == null)
+            return;
+        try {
+            Path directory = metadataFile.toPath().getParent();
+            Files.createDirectories(directory);
+            Path tmpFile = Files.createTempFile(directory, metadataFile.getName(), ".tmp");
+            Files.writeString(tmpFile, fileSize + " " + headerLength + " " + bodyLineCount + "\n", StandardCharsets.UTF_8);
+            Files.move(tmpFile, metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The metadata is only a cache, it will be computed again
+        }
+    }
 }
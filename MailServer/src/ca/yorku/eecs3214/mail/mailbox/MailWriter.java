@@ -1,19 +1,64 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
-import java.io.IOException;
-import java.io.Writer;
+import ca.yorku.eecs3214.mail.metrics.Histogram;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
  * Writer interface that saves the content into a set of user mailboxes. Can be used in the same way as any other
- * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter.
+ * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter. Characters are
+ * saved in UTF-8. Content that is already encoded, such as a message received by the SMTP server, can be saved
+ * unchanged with <code>writeBytes()</code> or <code>transferFrom()</code>.
+ * <p>
+ * In SINGLE_INSTANCE mode (the default) the content is written only once, to a staging file, and when the writer is
+ * closed each recipient's message is created as a hard link to that file, so the cost of delivering a message does not
+ * grow with the number of recipients. In PER_RECIPIENT mode each recipient's message is written separately as content
+ * arrives. The default mode can be changed with the <code>mail.delivery.mode</code> system property.
+ * <p>
+ * If compression is enabled (see {@link MessageCompression}), messages are stored compressed. In SINGLE_INSTANCE mode
+ * the content is compressed once and the compressed file is linked into every mailbox.
  */
 public class MailWriter extends Writer {
 
+    /**
+     * Strategy used to save the content into the recipients' mailboxes.
+     */
+    public enum Mode {
+        /** Each recipient's message is written separately as content arrives. */
+        PER_RECIPIENT,
+        /** Content is written once, and each recipient's message is a hard link to it, or a copy if linking fails. */
+        SINGLE_INSTANCE
+    }
+
     public static final int BUFFER_SIZE = 4096;
-    private final Collection<Writer> writers;
+    public static final Mode DEFAULT_MODE =
+            Mode.valueOf(System.getProperty("mail.delivery.mode", "single_instance").toUpperCase());
+
+    private static final Histogram FLUSH_TIME = Metrics.histogram("mail_writer_flush_duration_seconds", "",
+            "Time taken to flush buffered content into the recipients' messages.", 1e-9);
+    private static final Histogram CLOSE_TIME = Metrics.histogram("mail_writer_close_duration_seconds", "",
+            "Time taken to close a MailWriter, including creating and committing the messages.", 1e-9);
+    private static final Histogram DELIVERY_TIME = Metrics.histogram("mail_delivery_duration_seconds", "",
+            "Time taken to deliver a complete message to all its recipients.", 1e-9);
+    private static final Histogram FAN_OUT = Metrics.histogram("mail_delivery_recipients", "",
+            "Number of recipient mailboxes per delivered message.", 1);
+
+    private final Collection<Mailbox> recipients;
+    private final Path stagingFile;
+    private final Collection<OutputStream> outputs;
     private final StringBuffer buffer;
+    private List<File> messageFiles = List.of();
+    private boolean closed = false;
 
     /**
      * Creates a new MailWriter for a collection of mailbox recipients. Any content written to this MailWriter will be
@@ -22,10 +67,149 @@ public class MailWriter extends Writer {
      * @param recipients Collection (list or set) of mailboxes where the content will be saved.
      */
     public MailWriter(Collection<Mailbox> recipients) {
-        writers = recipients.stream().map(Mailbox::getNewMessageWriter).collect(Collectors.toList());
+        this(recipients, DEFAULT_MODE);
+    }
+
+    /**
+     * Creates a new MailWriter for a collection of mailbox recipients, using a specific delivery mode.
+     *
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @param mode       Strategy used to save the content into the mailboxes.
+     * @throws UncheckedIOException If the staging file for SINGLE_INSTANCE mode, or any of the messages in
+     *                              PER_RECIPIENT mode, cannot be created.
+     */
+    public MailWriter(Collection<Mailbox> recipients, Mode mode) {
+        this.recipients = recipients;
+        if (mode == Mode.SINGLE_INSTANCE) {
+            try {
+                //noinspection ResultOfMethodCallIgnored
+                MessageSpool.SPOOL_DIRECTORY.mkdirs();
+                stagingFile = Files.createTempFile(MessageSpool.SPOOL_DIRECTORY.toPath(), "mail", ".tmp");
+                outputs = List.of(Files.newOutputStream(stagingFile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            stagingFile = null;
+            List<Mailbox.MessageOutputStream> streams = new ArrayList<>(recipients.size());
+            try {
+                for (Mailbox mailbox : recipients)
+                    streams.add(mailbox.getNewMessageStream());
+            } catch (IOException e) {
+                for (Mailbox.MessageOutputStream stream : streams)
+                    stream.abort();
+                throw new UncheckedIOException(e);
+            }
+            outputs = List.copyOf(streams);
+        }
         buffer = new StringBuffer(BUFFER_SIZE);
     }
 
+    /**
+     * Saves the content of an existing file as a new message in each of the recipients' mailboxes. In SINGLE_INSTANCE
+     * mode the messages are hard links to the file, so no content is copied at all; in PER_RECIPIENT mode the content
+     * is copied into each mailbox.
+     *
+     * @param content    The file with the message content. The file is not modified or removed.
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @param mode       Strategy used to save the content into the mailboxes.
+     * @return The message files created in the recipients' mailboxes.
+     * @throws IOException If there is an exception while reading the file or saving content into any of the mailbox
+     *                     files.
+     */
+    public static List<File> deliver(Path content, Collection<Mailbox> recipients, Mode mode) throws IOException {
+        long start = System.nanoTime();
+        FAN_OUT.record(recipients.size());
+        if (mode == Mode.SINGLE_INSTANCE) {
+            List<File> files = linkInstances(content, recipients, null);
+            DELIVERY_TIME.recordSince(start);
+            return files;
+        }
+        MailWriter writer;
+        try {
+            writer = new MailWriter(recipients, mode);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        try (InputStream in = Files.newInputStream(content); writer) {
+            writer.transferFrom(in);
+        }
+        DELIVERY_TIME.recordSince(start);
+        return writer.getMessageFiles();
+    }
+
+    /**
+     * Saves the content of an existing file as a new message in each of the recipients' mailboxes, like
+     * <code>deliver()</code>, except that a mailbox where the message cannot be saved does not prevent its delivery to
+     * the others. In SINGLE_INSTANCE mode the content is still compressed (if needed) and committed once for all
+     * recipients; in PER_RECIPIENT mode, where each recipient's message is written separately anyway, each recipient
+     * is delivered on its own.
+     *
+     * @param content    The file with the message content. The file is not modified or removed.
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @param mode       Strategy used to save the content into the mailboxes.
+     * @return The recipients whose message could not be saved, each with the exception that prevented it; an empty
+     * map if the message was delivered to every recipient.
+     * @throws IOException If the message could not be saved for any recipient, e.g., because the file could not be
+     *                     read or the messages could not be committed.
+     */
+    public static Map<Mailbox, Exception> deliverEach(Path content, Collection<Mailbox> recipients, Mode mode)
+            throws IOException {
+        Map<Mailbox, Exception> failures = new LinkedHashMap<>();
+        if (mode == Mode.SINGLE_INSTANCE) {
+            long start = System.nanoTime();
+            FAN_OUT.record(recipients.size());
+            linkInstances(content, recipients, failures);
+            DELIVERY_TIME.recordSince(start);
+            return failures;
+        }
+        for (Mailbox mailbox : recipients) {
+            try {
+                deliver(content, List.of(mailbox), mode);
+            } catch (IOException | RuntimeException e) {
+                failures.put(mailbox, e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Creates each recipient's message as a hard link to the content (see <code>Mailbox.addMessage()</code>), and
+     * commits them all at once.
+     *
+     * @param failures Receives the recipients whose message could not be created, or null if any such failure must be
+     *                 thrown instead.
+     */
+    private static List<File> linkInstances(Path content, Collection<Mailbox> recipients,
+                                            Map<Mailbox, Exception> failures) throws IOException {
+        Path compressed = null;
+        try {
+            if (MessageCompression.ENABLED && !MessageCompression.isCompressed(content)) {
+                // Compressed once, and linked into every mailbox like the original would be
+                //noinspection ResultOfMethodCallIgnored
+                MessageSpool.SPOOL_DIRECTORY.mkdirs();
+                compressed = Files.createTempFile(MessageSpool.SPOOL_DIRECTORY.toPath(), "mail", MessageCompression.SUFFIX);
+                MessageCompression.compress(content, compressed);
+                content = compressed;
+            }
+            List<File> files = new ArrayList<>(recipients.size());
+            for (Mailbox mailbox : recipients) {
+                try {
+                    files.add(mailbox.addMessage(content));
+                } catch (IOException | RuntimeException e) {
+                    if (failures == null)
+                        throw e;
+                    failures.put(mailbox, e);
+                }
+            }
+            GroupCommitter.commit(files);
+            return files;
+        } finally {
+            if (compressed != null)
+                Files.deleteIfExists(compressed);
+        }
+    }
+
     /**
      * Writes the content to an internal buffer that will eventually be written to messages in all mailboxes. This is
      * the basis for all other <code>write()</code> methods, as they internally call this method with appropriate
@@ -42,6 +226,37 @@ public class MailWriter extends Writer {
         buffer.append(cbuf, off, len);
     }
 
+    /**
+     * Writes raw bytes to the messages in all mailboxes, without any character encoding. Any characters written
+     * before are flushed first, so content is saved in the order it was written.
+     *
+     * @param bytes  Array of bytes to be written
+     * @param off    Offset from which to start writing bytes
+     * @param len    Number of bytes to write
+     * @throws IOException If there is an exception while saving content into any of the mailbox files.
+     */
+    public synchronized void writeBytes(byte[] bytes, int off, int len) throws IOException {
+        flush();
+        for (OutputStream out : outputs) {
+            out.write(bytes, off, len);
+        }
+    }
+
+    /**
+     * Copies all remaining bytes of an input stream, unchanged, to the messages in all mailboxes.
+     *
+     * @param in The stream to be copied. The stream is not closed.
+     * @throws IOException If there is an exception while reading the stream or saving content into any of the
+     *                     mailbox files.
+     */
+    public void transferFrom(InputStream in) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(bytes)) >= 0) {
+            writeBytes(bytes, 0, count);
+        }
+    }
+
     /**
      * Flushes the content into the individual mailboxes.
      *
@@ -51,23 +266,68 @@ public class MailWriter extends Writer {
     public synchronized void flush() throws IOException {
         if (buffer.length() == 0)
             return;
-        for (Writer w : writers) {
-            w.write(buffer.toString());
-            w.flush();
+        long start = System.nanoTime();
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        for (OutputStream out : outputs) {
+            out.write(bytes);
+            out.flush();
         }
         buffer.setLength(0);
+        FLUSH_TIME.recordSince(start);
     }
 
     /**
-     * Closes the MailWriter and corresponding mailbox item writers.
+     * Returns the message files created in the recipients' mailboxes. Only available once the writer is closed.
+     *
+     * @return A list of File objects corresponding to the new messages, or an empty list if the writer is not closed.
+     */
+    public List<File> getMessageFiles() {
+        return messageFiles;
+    }
+
+    /**
+     * Closes the MailWriter and corresponding mailbox item writers. In SINGLE_INSTANCE mode, this is when the messages
+     * are created in the recipients' mailboxes. Depending on the configured durability mode (see GroupCommitter), this
+     * method only returns once the messages have been forced to disk. Every mailbox file is closed even if closing
+     * another one fails. Closing a writer that is already closed has no effect.
      *
      * @throws IOException If there is an exception while saving or closing any of the mailbox files.
      */
     @Override
-    public void close() throws IOException {
-        flush();
-        for (Writer w : writers) {
-            w.close();
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        long start = System.nanoTime();
+        try {
+            IOException failure = null;
+            try {
+                flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (OutputStream out : outputs) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+            if (failure != null)
+                throw failure;
+            if (stagingFile != null) {
+                messageFiles = deliver(stagingFile, recipients, Mode.SINGLE_INSTANCE);
+            } else {
+                messageFiles = outputs.stream().map(out -> ((Mailbox.MessageOutputStream) out).getFile()).collect(Collectors.toList());
+                GroupCommitter.commit(messageFiles);
+            }
+        } finally {
+            if (stagingFile != null)
+                Files.deleteIfExists(stagingFile);
+            CLOSE_TIME.recordSince(start);
         }
     }
 }
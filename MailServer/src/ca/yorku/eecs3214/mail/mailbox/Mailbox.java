@@ -1,57 +1,76 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
+import ca.yorku.eecs3214.mail.metrics.Histogram;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 public class Mailbox implements Iterable<MailMessage> {
 
+    /**
+     * Layout of the files in a user's mail directory.
+     */
+    public enum Layout {
+        /**
+         * All messages are stored directly in the user's directory. They are written in its <code>tmp</code>
+         * subdirectory, and only appear, complete, in the user's directory once written.
+         */
+        FLAT,
+        /**
+         * Maildir-style layout: messages are written in the <code>tmp</code> subdirectory and only appear, complete, in
+         * <code>new</code> once written. Messages are read from both <code>new</code> and <code>cur</code>.
+         */
+        MAILDIR
+    }
+
     public static final String USER_FILE_NAME = "users.txt";
     public static final File USER_MAIL_BASE_DIRECTORY = new File("mail.store");
     public static final String MAIL_FILE_SUFFIX = ".mail";
+    public static final String COMPRESSED_MAIL_FILE_SUFFIX = MAIL_FILE_SUFFIX + MessageCompression.SUFFIX;
+    public static final Layout STORE_LAYOUT =
+            Layout.valueOf(System.getProperty("mail.store.layout", "flat").toUpperCase());
+    public static final String MAILDIR_TMP = "tmp";
+    public static final String MAILDIR_NEW = "new";
+    public static final String MAILDIR_CUR = "cur";
 
-    private static HashMap<String, String> userMap = null;
+    private static final ConcurrentHashMap<String, AtomicLong> nextMessageIndex = new ConcurrentHashMap<>();
+
+    private static final Histogram LOAD_TIME = Metrics.histogram("mail_mailbox_load_duration_seconds", "",
+            "Time taken to load the list of messages of a mailbox, once locked.", 1e-9);
 
     private final String user;
     private final File mailDirectory;
+    private final MailboxIndex index;
     private List<MailMessage> messageList = null;
+    private boolean maildropLocked = false;
 
     /**
      * Initialized the mailbox for a specified user.
      *
-     * @param user The user's address, including domain name.
+     * @param user The user's address, including domain name. The domain name is not case-sensitive.
      * @throws InvalidUserException If the user's address is not a valid address according to the list of accepted
      *                              addresses.
      */
     public Mailbox(String user) throws InvalidUserException {
-        if (!isValidUser(user))
+        // All the forms of the address must refer to the same mail directory
+        this.user = UserDirectory.getInstance().getCanonicalAddress(user);
+        if (this.user == null)
             throw new InvalidUserException();
-        this.user = user;
-        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, user);
-    }
-
-    /**
-     * Initializes the map of user addresses and passwords from the users database. Only retrieves the data once, so
-     * changes in the database require the server to be restarted.
-     *
-     * @return A map from a user's address to the user's password.
-     */
-    private static synchronized Map<String, String> getUserMap() {
-        if (userMap != null)
-            return userMap;
-        userMap = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] split = line.split(" ", 2);
-                userMap.put(split[0], split[1]);
-            }
-        } catch (FileNotFoundException e) {
-            // Do nothing, there are no users
-        } catch (IOException e) {
-            // Do nothing, accept no users
-        }
-        return userMap;
+        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, this.user);
+        if (STORE_LAYOUT == Layout.MAILDIR)
+            this.index = new MailboxIndex(mailDirectory, new File(mailDirectory, MAILDIR_NEW), new File(mailDirectory, MAILDIR_CUR));
+        else
+            this.index = new MailboxIndex(mailDirectory, mailDirectory);
     }
 
     /**
@@ -61,7 +80,7 @@ public class Mailbox implements Iterable<MailMessage> {
      * @return true if the user is in the database, and false otherwise.
      */
     public static boolean isValidUser(String user) {
-        return getUserMap().containsKey(user);
+        return UserDirectory.getInstance().isValidUser(user);
     }
 
     public String getUsername() {
@@ -69,44 +88,349 @@ public class Mailbox implements Iterable<MailMessage> {
     }
 
     /**
-     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage.
+     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage. The list of
+     * messages and their sizes is read from the mailbox index, which is only rebuilt from the message files themselves
+     * if it is missing or out of date. Messages are sorted by their number, i.e., in the order they were delivered.
+     * Messages being delivered while the list is loaded are either included complete or not included at all.
      *
      * @param password The user's password, unencrypted.
      * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
+     * @throws MailboxLockedException           If the mailbox is busy and the messages could not be loaded in time.
      */
-    public void loadMessages(String password) throws MailboxNotAuthenticatedException {
-        if (password == null || !password.equals(getUserMap().get(user)))
+    public void loadMessages(String password) throws MailboxNotAuthenticatedException, MailboxLockedException {
+        if (!UserDirectory.getInstance().checkPassword(user, password))
             throw new MailboxNotAuthenticatedException();
-        this.messageList = Collections.emptyList();
-        if (mailDirectory.exists() && mailDirectory.isDirectory()) {
-            File[] files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(MAIL_FILE_SUFFIX));
-            if (files != null)
-                this.messageList = Arrays.stream(files).sorted().map(MailMessage::new).collect(Collectors.toList());
+        readMessageList();
+    }
+
+    private void readMessageList() throws MailboxLockedException {
+        MailboxLocks.lockExclusive(user, mailDirectory);
+        try {
+            long start = System.nanoTime();
+            readMessageListLocked();
+            LOAD_TIME.recordSince(start);
+        } finally {
+            MailboxLocks.unlockExclusive(user);
         }
     }
 
+    private void readMessageListLocked() {
+        List<MailMessage> messages = index.load();
+        if (messages == null) {
+            List<File> files = new ArrayList<>();
+            if (STORE_LAYOUT == Layout.MAILDIR) {
+                listMessageFiles(new File(mailDirectory, MAILDIR_NEW), files);
+                listMessageFiles(new File(mailDirectory, MAILDIR_CUR), files);
+            } else {
+                listMessageFiles(mailDirectory, files);
+            }
+            messages = files.stream().map(f -> index.message(f, MessageCompression.contentSize(f))).collect(Collectors.toList());
+            index.rewrite(messages);
+        }
+        this.messageList = messages.stream()
+                .sorted(Comparator.comparingLong((MailMessage m) -> messageIndex(m.getFile().getName()))
+                        .thenComparing(m -> m.getFile().getName()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Checks the user's password and, if valid, acquires the exclusive maildrop lock for this mailbox, as required for
+     * a POP3 session entering the TRANSACTION state, then loads the user's mailbox messages as in
+     * <code>loadMessages()</code>. The list is only read once the lock is held, so it reflects any change made before
+     * the lock was acquired. The lock is held until <code>unlockMaildrop()</code> is called, and while it is held no
+     * other Mailbox object can acquire it for the same user. Deliveries are not affected by the lock.
+     *
+     * @param password The user's password, unencrypted.
+     * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
+     * @throws MailboxLockedException           If the maildrop is locked by another session, or the mailbox is busy
+     *                                          and the messages could not be loaded in time.
+     */
+    public void openMaildrop(String password) throws MailboxNotAuthenticatedException, MailboxLockedException {
+        if (!UserDirectory.getInstance().checkPassword(user, password))
+            throw new MailboxNotAuthenticatedException();
+        if (!maildropLocked) {
+            if (!MailboxLocks.tryLockMaildrop(user, mailDirectory))
+                throw new MailboxLockedException();
+            maildropLocked = true;
+        }
+        try {
+            readMessageList();
+        } catch (MailboxLockedException e) {
+            unlockMaildrop();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the maildrop lock acquired with <code>openMaildrop()</code>. If the lock is not held, this method performs
+     * no operation.
+     */
+    public void unlockMaildrop() {
+        if (!maildropLocked)
+            return;
+        maildropLocked = false;
+        MailboxLocks.unlockMaildrop(user);
+    }
+
+    private static void listMessageFiles(File directory, List<File> files) {
+        File[] list = directory.listFiles(f -> f.isFile() && isMessageFileName(f.getName()));
+        if (list != null)
+            files.addAll(Arrays.asList(list));
+    }
+
     /**
-     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. Used by the
-     * MailWriter class.
+     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. The message
+     * becomes visible in the mailbox and is added to the mailbox index once the writer is closed. If the writer cannot
+     * be closed, the message is discarded. If compression is enabled (see {@link MessageCompression}), the content is
+     * written as plain text and compressed when the writer is closed.
      *
      * @return A FileWriter object associated to the new file.
+     * @throws IOException If the message file cannot be created.
+     */
+    public FileWriter getNewMessageWriter() throws IOException {
+        File file = createNewMessageFile(MAIL_FILE_SUFFIX);
+        try {
+            return new FileWriter(file) {
+                private boolean published = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (published)
+                        return;
+                    published = true;
+                    File message = file;
+                    try {
+                        super.close();
+                        long size = file.length();
+                        if (MessageCompression.ENABLED) {
+                            // N.mail is compressed into N.mail.z, which is published instead
+                            message = new File(file.getParentFile(), file.getName() + MessageCompression.SUFFIX);
+                            MessageCompression.compress(file.toPath(), message.toPath());
+                            Files.delete(file.toPath());
+                        }
+                        publishMessage(message, size);
+                    } catch (IOException | RuntimeException e) {
+                        discardMessageFile(file);
+                        discardMessageFile(message);
+                        throw e;
+                    }
+                }
+            };
+        } catch (IOException e) {
+            discardMessageFile(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new file to store a new incoming message, as well as an OutputStream associated to the file, to which
+     * content is saved exactly as written, or compressed as it is written if compression is enabled (see
+     * {@link MessageCompression}). Used by the MailWriter class. The message only becomes visible in the mailbox once
+     * the stream is closed, and is discarded if the stream cannot be closed.
+     *
+     * @return A MessageOutputStream object associated to the new file.
+     * @throws IOException If the message file cannot be created.
+     */
+    public MessageOutputStream getNewMessageStream() throws IOException {
+        File file = createNewMessageFile(MessageCompression.ENABLED ? COMPRESSED_MAIL_FILE_SUFFIX : MAIL_FILE_SUFFIX);
+        try {
+            return new MessageOutputStream(file);
+        } catch (IOException e) {
+            discardMessageFile(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Saves the content of an existing file as a new message in this mailbox. The new message is created as a hard link
+     * to the file, so the content is not copied, unless a link cannot be created (e.g., the file is in a different file
+     * system), in which case the content is copied instead.
+     *
+     * @param content The file with the message content, compressed if its name ends with the suffix used by
+     *                {@link MessageCompression}. The file is not modified or removed.
+     * @return A File object corresponding to the new message.
+     * @throws IOException If the message cannot be created.
+     */
+    public File addMessage(Path content) throws IOException {
+        MailboxLocks.lockShared(user, mailDirectory);
+        try {
+            return addMessageLocked(content);
+        } finally {
+            MailboxLocks.unlockShared(user);
+        }
+    }
+
+    private File addMessageLocked(Path content) throws IOException {
+        File file;
+        String suffix = MessageCompression.isCompressed(content) ? COMPRESSED_MAIL_FILE_SUFFIX : MAIL_FILE_SUFFIX;
+        try {
+            // A link is created atomically, so with MAILDIR it can go directly to the new directory
+            file = claimNewMessageFile(deliveryDirectory(MAILDIR_NEW), suffix, path -> Files.createLink(path, content));
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            file = claimNewMessageFile(deliveryDirectory(MAILDIR_TMP), suffix, path -> Files.copy(content, path));
+            file = publishMessageFile(file);
+        }
+        index.recordAdded(file, MessageCompression.contentSize(content.toFile()));
+        return file;
+    }
+
+    /**
+     * Makes a complete message visible in the mailbox and adds it to the index, holding the shared lock only for these
+     * two steps, so that loading the list of messages never sees one without the other.
+     *
+     * @param file The message file.
+     * @param size The size of the message, or -1 if it must be obtained from the file.
+     * @return The final location of the message.
+     */
+    private File publishMessage(File file, long size) throws IOException {
+        MailboxLocks.lockShared(user, mailDirectory);
+        try {
+            File message = publishMessageFile(file);
+            index.recordAdded(message, size < 0 ? MessageCompression.contentSize(message) : size);
+            return message;
+        } finally {
+            MailboxLocks.unlockShared(user);
+        }
+    }
+
+    private File createNewMessageFile(String suffix) throws IOException {
+        return claimNewMessageFile(deliveryDirectory(MAILDIR_TMP), suffix, Files::createFile);
+    }
+
+    /**
+     * Removes the file of a message that could not be completed. Its content is left behind if it cannot be removed, but
+     * it is never published.
+     */
+    private static void discardMessageFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            // Nothing else to do, the file is in the tmp directory
+        }
+    }
+
+    /**
+     * Returns the directory where message files are created, i.e., the specified Maildir subdirectory. With the FLAT
+     * layout, complete messages are stored in the mail directory itself instead of <code>new</code>.
      */
-    public FileWriter getNewMessageWriter() {
+    private File deliveryDirectory(String maildirSubdirectory) {
+        if (STORE_LAYOUT == Layout.FLAT && !maildirSubdirectory.equals(MAILDIR_TMP))
+            return mailDirectory;
+        return new File(mailDirectory, maildirSubdirectory);
+    }
+
+    /**
+     * Moves a complete message from the tmp directory to the directory of complete messages. The move is done by creating a
+     * hard link in the new directory and removing the original file, which, unlike a rename, fails instead of
+     * replacing an existing message if the name is already taken.
+     */
+    private File publishMessageFile(File tmpFile) throws IOException {
+        File file = new File(deliveryDirectory(MAILDIR_NEW), tmpFile.getName());
+        String suffix = messageSuffix(tmpFile.getName());
+        try {
+            try {
+                //noinspection ResultOfMethodCallIgnored
+                file.getParentFile().mkdirs();
+                Files.createLink(file.toPath(), tmpFile.toPath());
+            } catch (FileAlreadyExistsException e) {
+                file = claimNewMessageFile(deliveryDirectory(MAILDIR_NEW), suffix, path -> Files.createLink(path, tmpFile.toPath()));
+            }
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            file = claimNewMessageFile(deliveryDirectory(MAILDIR_NEW), suffix,
+                    path -> Files.move(tmpFile.toPath(), path, StandardCopyOption.ATOMIC_MOVE));
+        }
+        Files.deleteIfExists(tmpFile.toPath());
+        return file;
+    }
+
+    /**
+     * Allocates the next message file name and creates the file with the specified operation, which must fail with a
+     * FileAlreadyExistsException if the file already exists. Names are taken from a per-mailbox counter, so creating a
+     * message takes constant time regardless of how many messages the mailbox holds. The counter is recovered from the
+     * existing files the first time a mailbox is used, and again whenever a name turns out to be taken already (e.g.,
+     * by another process delivering into the same mailbox), so no state needs to be persisted besides the files. The
+     * suffix is either <code>MAIL_FILE_SUFFIX</code> or <code>COMPRESSED_MAIL_FILE_SUFFIX</code>.
+     */
+    private File claimNewMessageFile(File directory, String suffix, MessageFileCreator creator) throws IOException {
         // Creates the directory if it doesn't exist
         //noinspection ResultOfMethodCallIgnored
-        mailDirectory.mkdirs();
-        for (int i = 0; ; i++) {
+        directory.mkdirs();
+        AtomicLong next = nextMessageIndex.computeIfAbsent(mailDirectory.getPath(), d -> new AtomicLong(scanNextMessageIndex()));
+        while (true) {
+            File file = new File(directory, next.getAndIncrement() + suffix);
             try {
-                File file = new File(mailDirectory, i + MAIL_FILE_SUFFIX);
-                if (!file.createNewFile())
-                    continue;
-                return new FileWriter(file);
-            } catch (IOException e) {
-                // continue, try next index
+                creator.create(file.toPath());
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                // The counter is behind the directory content, skip past the existing files
+                next.accumulateAndGet(scanNextMessageIndex(), Math::max);
             }
         }
     }
 
+    private long scanNextMessageIndex() {
+        long next = scanNextMessageIndex(mailDirectory);
+        next = Math.max(next, scanNextMessageIndex(new File(mailDirectory, MAILDIR_TMP)));
+        if (STORE_LAYOUT == Layout.MAILDIR) {
+            next = Math.max(next, scanNextMessageIndex(new File(mailDirectory, MAILDIR_NEW)));
+            next = Math.max(next, scanNextMessageIndex(new File(mailDirectory, MAILDIR_CUR)));
+        }
+        return next;
+    }
+
+    private static long scanNextMessageIndex(File directory) {
+        long next = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names)
+                next = Math.max(next, messageIndex(name) + 1);
+        }
+        return next;
+    }
+
+    /**
+     * Checks if a file name is the name of a message file, plain or compressed.
+     *
+     * @param name The name of the file.
+     * @return true if the file holds a message, and false otherwise.
+     */
+    public static boolean isMessageFileName(String name) {
+        return messageSuffix(name) != null;
+    }
+
+    /**
+     * Returns the suffix of a message file name, i.e., <code>COMPRESSED_MAIL_FILE_SUFFIX</code> or
+     * <code>MAIL_FILE_SUFFIX</code>, or null if the name is not a message file name.
+     */
+    private static String messageSuffix(String name) {
+        if (name.endsWith(COMPRESSED_MAIL_FILE_SUFFIX))
+            return COMPRESSED_MAIL_FILE_SUFFIX;
+        return name.endsWith(MAIL_FILE_SUFFIX) ? MAIL_FILE_SUFFIX : null;
+    }
+
+    /**
+     * Returns the numeric index of a message file, i.e., the N in N.mail or N.mail.z.
+     *
+     * @param name The name of the message file.
+     * @return The index of the message, or -1 if the name is not a numbered message file name.
+     */
+    static long messageIndex(String name) {
+        String suffix = messageSuffix(name);
+        if (suffix == null)
+            return -1;
+        int length = name.length() - suffix.length();
+        if (length <= 0 || length > 18)
+            return -1;
+        long index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
     /**
      * Iterates over the mail messages load from the mailbox. May be used to create a for-each loop like:
      * <pre>
@@ -173,21 +497,162 @@ public class Mailbox implements Iterable<MailMessage> {
      * Deletes the files for each message currently tagged for deletion. This operation cannot be undone, and for POP3
      * should only be performed when the corresponding session is complete. If the corresponding messages have not been
      * loaded, this method performs no operation.
+     *
+     * @throws MailboxLockedException If the mailbox is busy and the messages could not be deleted in time.
      */
-    public void deleteMessagesTaggedForDeletion() {
+    public void deleteMessagesTaggedForDeletion() throws MailboxLockedException {
         if (messageList == null)
             return;
+        MailboxLocks.lockExclusive(user, mailDirectory);
+        try {
+            deleteMessagesLocked();
+        } finally {
+            MailboxLocks.unlockExclusive(user);
+        }
+    }
+
+    private void deleteMessagesLocked() {
+        List<MailMessage> deleted = new ArrayList<>();
+        List<MailMessage> remaining = new ArrayList<>();
         for (MailMessage item : messageList) {
-            if (item.isDeleted())
+            if (item.isDeleted()) {
                 //noinspection ResultOfMethodCallIgnored
                 item.getFile().delete();
+                item.deleteMetadata();
+                deleted.add(item);
+            } else {
+                remaining.add(item);
+            }
         }
+        index.recordDeleted(deleted, remaining);
+    }
+
+    /**
+     * Stream used to write the content of a new message into this mailbox.
+     */
+    public class MessageOutputStream extends FileOutputStream {
+
+        private File file;
+        private boolean closed = false;
+        private final Deflater deflater;
+        private byte[] deflated;
+        private long contentSize = 0;
+
+        private MessageOutputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
+            if (MessageCompression.isCompressed(file.toPath())) {
+                // The header is written once the content size is known, when the stream is closed
+                getChannel().position(MessageCompression.HEADER_SIZE);
+                this.deflater = new Deflater(MessageCompression.LEVEL);
+                this.deflated = new byte[MailWriter.BUFFER_SIZE];
+            } else {
+                this.deflater = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (deflater == null)
+                super.write(b);
+            else
+                write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (deflater == null) {
+                super.write(b, off, len);
+                return;
+            }
+            contentSize += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+                writeDeflated();
+        }
+
+        private void writeDeflated() throws IOException {
+            int count = deflater.deflate(deflated);
+            if (count > 0)
+                super.write(deflated, 0, count);
+        }
+
+        /**
+         * Returns the file where the message is stored. Once the stream is closed, this is the final location of the
+         * message, which with the MAILDIR layout is not the file the content was written to.
+         *
+         * @return A File object corresponding to the message.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Closes the stream and discards the message, which is never published. Has no effect once the stream is
+         * closed.
+         */
+        public void abort() {
+            if (closed)
+                return;
+            closed = true;
+            if (deflater != null)
+                deflater.end();
+            try {
+                super.close();
+            } catch (IOException e) {
+                // The file is removed anyway
+            }
+            discardMessageFile(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closing the stream closes its channel, which calls this method again
+            if (closed) {
+                super.close();
+                return;
+            }
+            closed = true;
+            try {
+                long size;
+                try {
+                    if (deflater != null) {
+                        deflater.finish();
+                        while (!deflater.finished())
+                            writeDeflated();
+                        getChannel().write(MessageCompression.header(contentSize), 0);
+                        size = contentSize;
+                    } else {
+                        size = getChannel().size();
+                    }
+                } finally {
+                    if (deflater != null)
+                        deflater.end();
+                    super.close();
+                }
+                file = publishMessage(file, size);
+            } catch (IOException | RuntimeException e) {
+                discardMessageFile(file);
+                throw e;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MessageFileCreator {
+        void create(Path path) throws IOException;
     }
 
     /**
      * Exception used when attempting to obtain a mailbox for a user that is not in the database.
      */
     public static class InvalidUserException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
     }
 
     /**
@@ -195,5 +660,14 @@ public class Mailbox implements Iterable<MailMessage> {
      * performed or was unsuccessful.
      */
     public static class MailboxNotAuthenticatedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Exception used when the mailbox cannot be locked, either because its maildrop is locked by another session or
+     * because it is busy for longer than the lock timeout.
+     */
+    public static class MailboxLockedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
     }
 }
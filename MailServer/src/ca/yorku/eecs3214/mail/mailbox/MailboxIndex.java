@@ -0,0 +1,183 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only index of the messages in a mailbox, so the list of messages and their sizes can be loaded with a single
+ * sequential read instead of listing the mail directory and checking the size of every file. Each delivery appends an
+ * "A" record with the message's path (relative to the mail directory) and size, and each deletion a "D" record.
+ * <p>
+ * The index is treated as a cache of the directory content: if it is missing, or if the messages it lists are not
+ * exactly the message files in the message directories (e.g., a delivery failed after creating its file but before
+ * appending its record, or the files were changed by another program), the caller rebuilds it from the files
+ * themselves. Only the names in the directories are read for this check, and it must be made while deliveries are
+ * excluded by the mailbox lock (see {@link MailboxLocks}), so that no message is between the two steps.
+ * <p>
+ * The index also determines where the metadata of each message (see {@link MailMessage}) is cached: a file with the
+ * same name as the message in the <code>.meta</code> subdirectory of the mail directory.
+ */
+class MailboxIndex {
+
+    static final String INDEX_FILE_NAME = ".index";
+    static final String METADATA_DIRECTORY_NAME = ".meta";
+
+    // Rewrite the index once it holds this many more records than live messages
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private final File mailDirectory;
+    private final Path indexFile;
+    private final File[] messageDirectories;
+    private final File metadataDirectory;
+    private int recordCount = 0;
+
+    /**
+     * Creates an index object for a mail directory.
+     *
+     * @param mailDirectory      The user's mail directory, where the index file is kept.
+     * @param messageDirectories The directories where message files are stored.
+     */
+    MailboxIndex(File mailDirectory, File... messageDirectories) {
+        this.mailDirectory = mailDirectory;
+        this.indexFile = new File(mailDirectory, INDEX_FILE_NAME).toPath();
+        this.messageDirectories = messageDirectories;
+        this.metadataDirectory = new File(mailDirectory, METADATA_DIRECTORY_NAME);
+    }
+
+    /**
+     * Creates the message object for a message file in this mailbox.
+     *
+     * @param file The message file.
+     * @param size The size of the message, in bytes.
+     * @return A MailMessage whose metadata is cached in the mailbox's metadata directory.
+     */
+    MailMessage message(File file, long size) {
+        return new MailMessage(file, size, new File(metadataDirectory, file.getName()));
+    }
+
+    /**
+     * Reads the list of messages from the index.
+     *
+     * @return The messages in the index, in the order they were added, or null if the index is missing or out of date
+     * and must be rebuilt.
+     */
+    List<MailMessage> load() {
+        try {
+            Map<String, Long> entries = new LinkedHashMap<>();
+            int records = 0;
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    records++;
+                    String[] fields = line.split(" ");
+                    if (fields.length == 3 && fields[0].equals("A"))
+                        entries.put(fields[1], Long.parseLong(fields[2]));
+                    else if (fields.length == 2 && fields[0].equals("D"))
+                        entries.remove(fields[1]);
+                }
+            }
+            recordCount = records;
+            if (!entries.keySet().equals(listMessageFiles()))
+                return null;
+
+            List<MailMessage> messages = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet())
+                messages.add(message(new File(mailDirectory, entry.getKey()), entry.getValue()));
+            return messages;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the paths of the message files in the message directories, relative to the mail directory, in the same
+     * form as in the index records.
+     */
+    private Set<String> listMessageFiles() {
+        Set<String> paths = new HashSet<>();
+        for (File directory : messageDirectories) {
+            String[] names = directory.list();
+            if (names == null)
+                continue;
+            for (String name : names) {
+                if (Mailbox.isMessageFileName(name))
+                    paths.add(relativePath(new File(directory, name)));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Appends a record for a newly delivered message.
+     *
+     * @param message The message file.
+     * @param size    The size of the message, in bytes.
+     */
+    void recordAdded(File message, long size) {
+        append("A " + relativePath(message) + " " + size + "\n");
+    }
+
+    /**
+     * Appends records for deleted messages, and compacts the index if it holds too many records of deleted messages.
+     *
+     * @param deleted   The messages that were deleted.
+     * @param remaining The messages that remain in the mailbox.
+     */
+    void recordDeleted(Collection<MailMessage> deleted, List<MailMessage> remaining) {
+        if (deleted.isEmpty())
+            return;
+        if (recordCount + deleted.size() > 2L * remaining.size() + COMPACTION_THRESHOLD) {
+            rewrite(remaining);
+            return;
+        }
+        StringBuilder records = new StringBuilder();
+        for (MailMessage message : deleted)
+            records.append("D ").append(relativePath(message.getFile())).append('\n');
+        append(records.toString());
+        recordCount += deleted.size();
+    }
+
+    /**
+     * Replaces the index with one containing exactly the specified messages.
+     *
+     * @param messages The messages in the mailbox.
+     */
+    void rewrite(List<MailMessage> messages) {
+        StringBuilder records = new StringBuilder();
+        for (MailMessage message : messages)
+            records.append("A ").append(relativePath(message.getFile())).append(' ').append(message.getFileSize()).append('\n');
+        if (!mailDirectory.isDirectory())
+            return;
+        try {
+            Files.createDirectories(metadataDirectory.toPath());
+            Path tmpFile = Files.createTempFile(mailDirectory.toPath(), INDEX_FILE_NAME, ".tmp");
+            Files.writeString(tmpFile, records, StandardCharsets.UTF_8);
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordCount = messages.size();
+        } catch (IOException e) {
+            // The index is only a cache, it will be rebuilt next time
+        }
+    }
+
+    private void append(String records) {
+        // A single write in append mode, so records from concurrent deliveries are never interleaved
+        try {
+            Files.write(indexFile, records.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            // The index is only a cache; since it now lists fewer messages than the directory holds, it will be rebuilt
+        }
+    }
+
+    private String relativePath(File message) {
+        return mailDirectory.toPath().relativize(message.toPath()).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,288 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrency control for mailboxes. Two kinds of locks are provided:
+ * <ul>
+ *     <li>Mailbox locks: deliveries hold a shared lock while they make a complete message visible and add it to the
+ *     mailbox index, so any number of them can proceed at the same time, and operations that list or remove messages
+ *     (or rewrite the mailbox index) hold an exclusive lock, so they never see a message that is only partially
+ *     delivered. These locks are only held for the duration of a single operation. Within the process they are a
+ *     fixed set of read-write locks, each shared by all the users whose names hash to it.</li>
+ *     <li>Maildrop locks: an exclusive lock per user, held by a POP3 session for as long as it is in the TRANSACTION
+ *     state, as required by RFC 1939. Acquiring the lock fails immediately, rather than waiting, if another session
+ *     holds it. Deliveries are not affected by this lock.</li>
+ * </ul>
+ * Since the SMTP and POP3 servers run as separate processes sharing the same mail store, both kinds of locks are also
+ * taken with <code>FileChannel</code> locks on the <code>.lock</code> file in the user's mail directory: byte 0 for the
+ * mailbox lock and byte 1 for the maildrop lock. The file locks may be disabled by setting <code>mail.lock.file</code>
+ * to false when the store is only used by a single process.
+ * <p>
+ * The number of stripes is set with <code>mail.lock.stripes</code> (default 64). Exclusive locks are acquired with a
+ * timeout, <code>mail.lock.timeoutMillis</code> (default 5000), so a session never waits indefinitely for a mailbox
+ * that stays busy. Shared locks are always released by the thread that acquired them, before the operation returns.
+ */
+class MailboxLocks {
+
+    static final String LOCK_FILE_NAME = ".lock";
+
+    private static final boolean FILE_LOCKS = Boolean.parseBoolean(System.getProperty("mail.lock.file", "true"));
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("mail.lock.timeoutMillis", 5000));
+    private static final long RETRY_MILLIS = 5;
+    private static final ReadWriteLock[] STRIPES = new ReadWriteLock[Math.max(1, Integer.getInteger("mail.lock.stripes", 64))];
+    private static final ConcurrentHashMap<String, LockFile> lockFiles = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Boolean> maildropLocks = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STRIPES.length; i++)
+            STRIPES[i] = new ReentrantReadWriteLock();
+    }
+
+    private MailboxLocks() {
+    }
+
+    private static ReadWriteLock stripe(String user) {
+        return STRIPES[Math.floorMod(user.hashCode(), STRIPES.length)];
+    }
+
+    private static LockFile lockFile(String user, File mailDirectory) {
+        return lockFiles.computeIfAbsent(user, u -> new LockFile(new File(mailDirectory, LOCK_FILE_NAME)));
+    }
+
+    /**
+     * Acquires the shared lock of a user's mailbox, waiting for as long as needed.
+     *
+     * @param user          The user's address.
+     * @param mailDirectory The user's mail directory, where the lock file is kept.
+     * @throws IOException If the lock file cannot be locked.
+     */
+    static void lockShared(String user, File mailDirectory) throws IOException {
+        stripe(user).readLock().lock();
+        if (!FILE_LOCKS)
+            return;
+        try {
+            lockFile(user, mailDirectory).lockShared();
+        } catch (IOException | RuntimeException e) {
+            stripe(user).readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the shared lock of a user's mailbox.
+     *
+     * @param user The user's address.
+     */
+    static void unlockShared(String user) {
+        try {
+            if (FILE_LOCKS)
+                lockFiles.get(user).unlockShared();
+        } finally {
+            stripe(user).readLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the exclusive lock of a user's mailbox, waiting at most the configured timeout.
+     *
+     * @param user          The user's address.
+     * @param mailDirectory The user's mail directory, where the lock file is kept.
+     * @throws Mailbox.MailboxLockedException If the lock could not be acquired in time.
+     */
+    static void lockExclusive(String user, File mailDirectory) throws Mailbox.MailboxLockedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        boolean locked = false;
+        try {
+            locked = stripe(user).writeLock().tryLock(TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+            if (locked && (!FILE_LOCKS || lockFile(user, mailDirectory).lockExclusive(deadline)))
+                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (locked)
+            stripe(user).writeLock().unlock();
+        throw new Mailbox.MailboxLockedException();
+    }
+
+    /**
+     * Releases the exclusive lock of a user's mailbox.
+     *
+     * @param user The user's address.
+     */
+    static void unlockExclusive(String user) {
+        try {
+            if (FILE_LOCKS)
+                lockFiles.get(user).unlockExclusive();
+        } finally {
+            stripe(user).writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the maildrop lock of a user, if it is not held by any other session.
+     *
+     * @param user          The user's address.
+     * @param mailDirectory The user's mail directory, where the lock file is kept.
+     * @return true if the lock was acquired, or false if it is held by another session.
+     */
+    static boolean tryLockMaildrop(String user, File mailDirectory) {
+        if (maildropLocks.putIfAbsent(user, Boolean.TRUE) != null)
+            return false;
+        if (!FILE_LOCKS || lockFile(user, mailDirectory).tryLockMaildrop())
+            return true;
+        maildropLocks.remove(user);
+        return false;
+    }
+
+    /**
+     * Releases the maildrop lock of a user.
+     *
+     * @param user The user's address.
+     */
+    static void unlockMaildrop(String user) {
+        if (FILE_LOCKS)
+            lockFiles.get(user).unlockMaildrop();
+        maildropLocks.remove(user);
+    }
+
+    /**
+     * The file locks held by this process on a user's lock file. All of them are taken through a single channel, since
+     * on some platforms closing any channel to a file releases all the locks the process holds on it. The channel is
+     * closed once no lock is held. The state of the file locks is guarded by a ReentrantLock rather than a monitor,
+     * since acquiring a shared file lock blocks, and a virtual thread blocked in a monitor cannot release its carrier.
+     */
+    private static class LockFile {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final File file;
+        private FileChannel channel;
+        private int sharedCount = 0;
+        private FileLock mailboxLock;
+        private FileLock maildropLock;
+
+        LockFile(File file) {
+            this.file = file;
+        }
+
+        void lockShared() throws IOException {
+            lock.lock();
+            try {
+                if (sharedCount == 0) {
+                    try {
+                        mailboxLock = channel().lock(0, 1, true);
+                    } catch (IOException e) {
+                        closeIfUnused();
+                        throw e;
+                    }
+                }
+                sharedCount++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void unlockShared() {
+            lock.lock();
+            try {
+                if (--sharedCount == 0)
+                    mailboxLock = release(mailboxLock);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean lockExclusive(long deadline) throws InterruptedException {
+            // Another process may hold the lock for a long time, so the lock is polled rather than waited for
+            while (true) {
+                lock.lock();
+                try {
+                    mailboxLock = channel().tryLock(0, 1, false);
+                    if (mailboxLock != null)
+                        return true;
+                } catch (IOException | OverlappingFileLockException e) {
+                    // Treated as held by another process
+                } finally {
+                    if (mailboxLock == null)
+                        closeIfUnused();
+                    lock.unlock();
+                }
+                if (System.nanoTime() - deadline > 0)
+                    return false;
+                Thread.sleep(RETRY_MILLIS);
+            }
+        }
+
+        void unlockExclusive() {
+            lock.lock();
+            try {
+                mailboxLock = release(mailboxLock);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean tryLockMaildrop() {
+            lock.lock();
+            try {
+                maildropLock = channel().tryLock(1, 1, false);
+            } catch (IOException | OverlappingFileLockException e) {
+                // Treated as held by another process
+            } finally {
+                closeIfUnused();
+                lock.unlock();
+            }
+            return maildropLock != null;
+        }
+
+        void unlockMaildrop() {
+            lock.lock();
+            try {
+                maildropLock = release(maildropLock);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.getParentFile().mkdirs();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        private FileLock release(FileLock lock) {
+            try {
+                if (lock != null)
+                    lock.release();
+            } catch (IOException e) {
+                // The lock is released when the channel is closed
+            }
+            closeIfUnused();
+            return null;
+        }
+
+        private void closeIfUnused() {
+            if (channel == null || mailboxLock != null || maildropLock != null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed storage format for message files, used for new messages when the system property
+ * <code>mail.store.compression</code> is set to <code>deflate</code> (the default is <code>none</code>). Compressed
+ * files are named with the <code>.z</code> suffix, i.e., <code>N.mail.z</code> for a message, so whether a file is
+ * compressed is known from its name alone and its content is never inspected to find out; plain and compressed messages
+ * can be mixed in the same mailbox, so the setting can be changed at any time. A compressed file starts with the size of
+ * the uncompressed content as an 8-byte big-endian number, so the size of a message can be known without decompressing
+ * it, followed by the content as a zlib stream. <code>mail.store.compressionLevel</code> sets the compression level,
+ * from 1 (fastest) to 9 (smallest).
+ */
+final class MessageCompression {
+
+    static final boolean ENABLED = "deflate".equalsIgnoreCase(System.getProperty("mail.store.compression", "none"));
+    static final int LEVEL = Integer.getInteger("mail.store.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+    static final String SUFFIX = ".z";
+    static final int HEADER_SIZE = Long.BYTES;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private MessageCompression() {
+    }
+
+    /**
+     * Returns the header of a compressed file, for content of a specified size.
+     */
+    static ByteBuffer header(long contentSize) {
+        return ByteBuffer.allocate(HEADER_SIZE).putLong(contentSize).flip();
+    }
+
+    /**
+     * Checks if a file is compressed, from its name.
+     *
+     * @param file The file.
+     * @return true if the file is compressed, and false otherwise.
+     */
+    static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    /**
+     * Reads the header of a compressed file.
+     *
+     * @param file The compressed file.
+     * @return The size of the uncompressed content.
+     * @throws IOException If the file cannot be read, or is too short to be a compressed file.
+     */
+    static long readHeader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            if (header.hasRemaining())
+                throw new IOException("Compressed file has no header: " + file);
+            return header.getLong(0);
+        }
+    }
+
+    /**
+     * Returns the size of the content of a message file, i.e., its uncompressed size if it is compressed, and its
+     * actual size otherwise.
+     *
+     * @param file The message file.
+     * @return The size of the message, in bytes.
+     */
+    static long contentSize(File file) {
+        if (!isCompressed(file.toPath()))
+            return file.length();
+        try {
+            return readHeader(file.toPath());
+        } catch (IOException e) {
+            return file.length();
+        }
+    }
+
+    /**
+     * Opens a stream with the content of a message file, decompressing it if needed.
+     *
+     * @param file       The message file.
+     * @param compressed Whether the file is compressed.
+     * @return A stream with the uncompressed content.
+     * @throws IOException If the file cannot be opened.
+     */
+    static InputStream open(Path file, boolean compressed) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (!compressed)
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        in.skipNBytes(HEADER_SIZE);
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                // The inflater is not owned by the stream, so it is not released by super.close()
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * Writes a compressed copy of a plain file.
+     *
+     * @param source The file with the content to be compressed.
+     * @param target The compressed file to be created.
+     * @throws IOException If the source cannot be read or the target cannot be written.
+     */
+    static void compress(Path source, Path target) throws IOException {
+        Deflater deflater = new Deflater(LEVEL);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream file = Files.newOutputStream(target)) {
+            file.write(header(Files.size(source)).array());
+            DeflaterOutputStream out = new DeflaterOutputStream(file, deflater, BUFFER_SIZE);
+            in.transferTo(out);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+}
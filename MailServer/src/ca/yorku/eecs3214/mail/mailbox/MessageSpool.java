@@ -0,0 +1,110 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Temporary on-disk storage for the content of a message while it is being received. Content is streamed to a spool
+ * file as it arrives, so the memory used by a message being received does not depend on the size of the message. Once
+ * the message is complete it can be delivered to a set of mailboxes; closing the spool discards the file.
+ */
+public class MessageSpool implements Closeable {
+
+    public static final File SPOOL_DIRECTORY = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, ".spool");
+
+    private final Path file;
+    private final OutputStream out;
+    private final long maxSize;
+    private long size = 0;
+    private boolean overflow = false;
+
+    /**
+     * Creates a new, empty spool file.
+     *
+     * @param maxSize Maximum number of bytes accepted. Content beyond this limit is discarded, and the spool is marked
+     *                as overflowed.
+     * @throws IOException If the spool file cannot be created.
+     */
+    public MessageSpool(long maxSize) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        SPOOL_DIRECTORY.mkdirs();
+        this.file = Files.createTempFile(SPOOL_DIRECTORY.toPath(), "msg", ".spool");
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), MailWriter.BUFFER_SIZE);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Appends raw content to the spool. The bytes are stored exactly as received.
+     *
+     * @param bytes  Array containing the content to be appended.
+     * @param offset Offset of the content in the array.
+     * @param length Number of bytes to be appended.
+     * @throws IOException If there is an error writing to the spool file.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (overflow || size + length > maxSize) {
+            overflow = true;
+            return;
+        }
+        out.write(bytes, offset, length);
+        size += length;
+    }
+
+    /**
+     * Returns the number of bytes written to the spool so far.
+     *
+     * @return The size of the spooled content, in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns true if content was discarded because the maximum size was exceeded.
+     *
+     * @return true if the message is too large to be delivered, and false otherwise.
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Saves the spooled content as a new message in each of the recipients' mailboxes. In the default SINGLE_INSTANCE
+     * delivery mode the messages are hard links to the spool file itself, so no content is copied. If asynchronous
+     * delivery is enabled, the spool file is handed to the {@link DeliveryQueue} instead, and the messages are saved in
+     * the background; the spool must not be written to afterwards.
+     *
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @throws DeliveryQueue.QueueFullException If asynchronous delivery is enabled and the queue is full.
+     * @throws IOException If there is an exception while reading the spool or saving the content into any of the
+     *                     mailbox files.
+     */
+    public void deliver(Collection<Mailbox> recipients) throws IOException {
+        if (DeliveryQueue.ENABLED) {
+            out.close();
+            DeliveryQueue.getInstance().enqueue(file, recipients);
+            return;
+        }
+        out.flush();
+        MailWriter.deliver(file, recipients, MailWriter.DEFAULT_MODE);
+    }
+
+    /**
+     * Discards the spooled content and removes the spool file.
+     */
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The file is being discarded anyway
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Nothing else to do, the file will be left in the spool directory
+        }
+    }
+}
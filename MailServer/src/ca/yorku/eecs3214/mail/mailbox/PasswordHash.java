@@ -0,0 +1,93 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted, slow password hashes for the users database. A hashed password is stored as
+ * <code>{PBKDF2}iterations$salt$hash</code>, where the salt and hash are Base64-encoded and the hash is computed with
+ * PBKDF2 and HMAC-SHA256. Passwords that do not start with <code>{PBKDF2}</code> are stored in plain text.
+ * <p>
+ * To add a user with a hashed password, run this class with the password as its argument and append the user's
+ * address, a space and the printed value to <code>users.txt</code>.
+ */
+public class PasswordHash {
+
+    public static final String PREFIX = "{PBKDF2}";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = Integer.getInteger("mail.auth.iterations", 210000);
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    /**
+     * Hashes a password with a new random salt.
+     *
+     * @param password The password, in plain text.
+     * @return The stored form of the hashed password.
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + ITERATIONS + "$" + encoder.encodeToString(salt) + "$" +
+                encoder.encodeToString(pbkdf2(password, salt, ITERATIONS, HASH_BITS));
+    }
+
+    /**
+     * Checks a password against its stored form, which may be hashed or in plain text. The comparison takes the same
+     * time regardless of where the password and the stored value differ.
+     *
+     * @param password The password provided by the user.
+     * @param stored   The password as stored in the users database.
+     * @return true if the password matches, and false otherwise (including if the stored value is malformed).
+     */
+    public static boolean verify(String password, String stored) {
+        if (!stored.startsWith(PREFIX))
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        String[] fields = stored.substring(PREFIX.length()).split("\\$");
+        if (fields.length != 3)
+            return false;
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(fields[2]);
+            byte[] actual = pbkdf2(password, decoder.decode(fields[1]), Integer.parseInt(fields[0]), expected.length * 8);
+            return MessageDigest.isEqual(actual, expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Prints the stored form of a password, to be used in the users database.
+     *
+     * @param args The command-line arguments: the password to be hashed.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            throw new RuntimeException(
+                    "This application must be executed with exactly one argument, the password to be hashed.");
+        }
+        System.out.println(hash(args[0]));
+    }
+}
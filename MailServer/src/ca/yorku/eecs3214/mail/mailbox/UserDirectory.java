@@ -0,0 +1,176 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import ca.yorku.eecs3214.mail.log.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Directory of the users accepted by the mail server, as listed in the users database (<code>users.txt</code>), one
+ * user per line with the user's address and password separated by a space. Passwords may be stored hashed, as
+ * produced by {@link PasswordHash}, or in plain text. Successful verifications of hashed passwords are cached for a
+ * few minutes (see {@link VerificationCache}), so clients that poll their mailbox frequently only pay for the slow hash
+ * once in a while.
+ * <p>
+ * The directory is an immutable snapshot of the database, replaced as a whole whenever the database is reloaded, so
+ * lookups take no locks and never see a partially loaded database. A background thread watches the database file and
+ * reloads it whenever it changes, so users can be added or removed without restarting the server. The file should be
+ * replaced atomically (e.g., by writing a new file and renaming it); if it is removed, the last snapshot is kept.
+ * <p>
+ * The domain part of addresses is case-insensitive, while the local part is matched exactly, as per RFC 5321.
+ */
+public class UserDirectory {
+
+    private final Path file;
+    private final VerificationCache verifications = new VerificationCache();
+    private volatile Map<String, User> users;
+
+    private UserDirectory(Path file) {
+        this.file = file.toAbsolutePath();
+        this.users = read(this.file, Map.of());
+        Thread.ofPlatform().daemon().name("user-directory").start(this::watch);
+    }
+
+    /**
+     * Returns the directory for the users database of this server.
+     *
+     * @return The user directory.
+     */
+    public static UserDirectory getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Checks if a specified address belongs to a valid user.
+     *
+     * @param address The user's address, including domain name.
+     * @return true if the user is in the database, and false otherwise.
+     */
+    public boolean isValidUser(String address) {
+        return address != null && users.containsKey(key(address));
+    }
+
+    /**
+     * Returns the address of a user exactly as listed in the database, e.g., with the domain in the case used in the
+     * database, so that all the forms of an address refer to the same mailbox.
+     *
+     * @param address The user's address, including domain name.
+     * @return The user's address as listed in the database, or null if the user is not in the database.
+     */
+    public String getCanonicalAddress(String address) {
+        User user = address == null ? null : users.get(key(address));
+        return user == null ? null : user.address;
+    }
+
+    /**
+     * Checks the password of a user.
+     *
+     * @param address  The user's address, including domain name.
+     * @param password The password provided by the user.
+     * @return true if the user is in the database and the password is correct, and false otherwise.
+     */
+    public boolean checkPassword(String address, String password) {
+        User user = address == null ? null : users.get(key(address));
+        if (user == null || password == null)
+            return false;
+        if (!user.password.startsWith(PasswordHash.PREFIX))
+            return PasswordHash.verify(password, user.password);
+        // The cached verification is only valid for this same User object, i.e., until the database is reloaded
+        if (verifications.isVerified(user.address, password, user))
+            return true;
+        if (!PasswordHash.verify(password, user.password))
+            return false;
+        verifications.verified(user.address, password, user);
+        return true;
+    }
+
+    /**
+     * Reads the users database again and replaces the current snapshot. Called automatically when the database file
+     * changes.
+     */
+    public void reload() {
+        users = read(file, users);
+    }
+
+    private static Map<String, User> read(Path file, Map<String, User> current) {
+        Map<String, User> map = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0)
+                    continue;
+                String address = line.substring(0, space);
+                map.put(key(address), new User(address, line.substring(space + 1)));
+            }
+        } catch (NoSuchFileException e) {
+            // Do nothing, there are no users (or no new users, if the file was removed)
+            return current;
+        } catch (IOException e) {
+            Log.warn("Error reading users database: " + e.getMessage());
+            return current;
+        }
+        return Map.copyOf(map);
+    }
+
+    /**
+     * Returns the lookup key for an address, i.e., the address with its domain in lower case.
+     */
+    private static String key(String address) {
+        int at = address.lastIndexOf('@');
+        if (at < 0)
+            return address;
+        for (int i = at + 1; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= 'A' && c <= 'Z' || c > 0x7f)
+                return address.substring(0, at + 1) + address.substring(at + 1).toLowerCase(Locale.ROOT);
+        }
+        // Most addresses have a lower-case domain already, so no new string is needed
+        return address;
+    }
+
+    private void watch() {
+        Path directory = file.getParent();
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            // The file may have changed between the initial read and the registration
+            reload();
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                        changed = true;
+                }
+                if (changed)
+                    reload();
+                if (!key.reset())
+                    return;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.warn("Users database will not be reloaded: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Not expected, the directory is simply no longer reloaded
+        }
+    }
+
+    private static class Holder {
+        private static final UserDirectory INSTANCE = new UserDirectory(Path.of(Mailbox.USER_FILE_NAME));
+    }
+
+    private static class User {
+        private final String address;
+        private final String password;
+
+        User(String address, String password) {
+            this.address = address;
+            this.password = password;
+        }
+    }
+}
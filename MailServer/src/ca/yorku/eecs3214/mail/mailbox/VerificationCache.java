@@ -0,0 +1,108 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of recently successful password verifications, so that clients polling their mailbox every few minutes do not
+ * pay for a slow password hash on every login. Entries are keyed by an HMAC of the address and password, computed with
+ * a random key generated when the server starts, so neither the password nor anything that can be checked offline
+ * against a guessed password is kept in memory. Only successful verifications are cached, so guessing passwords costs a
+ * full hash per attempt.
+ * <p>
+ * Entries expire after <code>mail.auth.cacheTtlSeconds</code> (default 300) seconds, and at most
+ * <code>mail.auth.cacheSize</code> (default 10000) entries are kept.
+ */
+class VerificationCache {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("mail.auth.cacheTtlSeconds", 300));
+    private static final int MAX_SIZE = Integer.getInteger("mail.auth.cacheSize", 10000);
+
+    private final SecretKeySpec key;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    VerificationCache() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, MAC_ALGORITHM);
+    }
+
+    /**
+     * Returns true if the password of a user was verified recently against the same stored credential.
+     *
+     * @param address    The user's address.
+     * @param password   The password provided by the user.
+     * @param credential The stored credential the password must match. A new credential (e.g., after the users database
+     *                   is reloaded) invalidates previous verifications.
+     * @return true if the verification is cached and has not expired, and false otherwise.
+     */
+    boolean isVerified(String address, String password, Object credential) {
+        String cacheKey = cacheKey(address, password);
+        Entry entry = entries.get(cacheKey);
+        if (entry == null)
+            return false;
+        if (entry.credential == credential && System.nanoTime() - entry.expiry < 0)
+            return true;
+        entries.remove(cacheKey, entry);
+        return false;
+    }
+
+    /**
+     * Records a successful verification.
+     *
+     * @param address    The user's address.
+     * @param password   The password provided by the user.
+     * @param credential The stored credential the password matched.
+     */
+    void verified(String address, String password, Object credential) {
+        if (TTL_NANOS <= 0 || MAX_SIZE <= 0)
+            return;
+        if (entries.size() >= MAX_SIZE)
+            evict();
+        entries.put(cacheKey(address, password), new Entry(credential, System.nanoTime() + TTL_NANOS));
+    }
+
+    /**
+     * Removes expired entries and, if the cache is still full, some of the others.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> now - entry.expiry >= 0);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() >= MAX_SIZE && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private String cacheKey(String address, String password) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(address.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    private static class Entry {
+        private final Object credential;
+        private final long expiry;
+
+        Entry(Object credential, long expiry) {
+            this.credential = credential;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count of events that only ever increases, e.g., the number of connections accepted. Updates are spread over
+ * several cells when threads contend, so counting an event costs about the same regardless of the number of threads
+ * counting it.
+ */
+public final class Counter implements Metric {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    public void render(StringBuilder out, String name, String labels) {
+        Metrics.sample(out, name, labels, get());
+    }
+
+    @Override
+    public void values(Map<String, Double> out, String name, String labels) {
+        out.put(Metrics.series(name, labels), (double) get());
+    }
+}
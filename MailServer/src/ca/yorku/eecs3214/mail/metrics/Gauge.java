@@ -0,0 +1,38 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Current value of a quantity that goes up and down, e.g., the number of active sessions. Like {@link Counter}, updates
+ * do not contend with each other.
+ */
+public final class Gauge implements Metric {
+
+    private final LongAdder value = new LongAdder();
+
+    Gauge() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public void render(StringBuilder out, String name, String labels) {
+        Metrics.sample(out, name, labels, get());
+    }
+
+    @Override
+    public void values(Map<String, Double> out, String name, String labels) {
+        out.put(Metrics.series(name, labels), (double) get());
+    }
+}
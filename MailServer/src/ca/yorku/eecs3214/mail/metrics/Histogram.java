@@ -0,0 +1,141 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of recorded values, e.g., the latency of a command in nanoseconds. Values are counted in log-linear
+ * buckets, as in HdrHistogram: values below 16 have a bucket each, and every power of two above that is split into 16
+ * buckets, so any reported percentile is within about 6% of the actual value. Recording a value only computes its
+ * bucket and increments a counter, without allocating or taking a lock. Values above about 2^40 (18 minutes, in
+ * nanoseconds) are counted in the last bucket.
+ */
+public final class Histogram implements Metric {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final double unit;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param unit Factor by which recorded values are multiplied when reported, e.g., 1e-9 for values recorded in
+     *             nanoseconds and reported in seconds.
+     */
+    Histogram(double unit) {
+        this.unit = unit;
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value to be recorded.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets[bucket(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since a specified instant.
+     *
+     * @param startNanos The start of the interval, as returned by <code>System.nanoTime()</code>.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns an upper bound of the value below which a specified fraction of the recorded values fall.
+     *
+     * @param quantile The fraction of values, between 0 and 1.
+     * @return The value, in the unit it was recorded in, or 0 if no value was recorded.
+     */
+    public long valueAt(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+        return valueAt(snapshot, total, quantile);
+    }
+
+    private long valueAt(long[] snapshot, long total, double quantile) {
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return i == BUCKETS - 1 ? max.get() : Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public void render(StringBuilder out, String name, String labels) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            Metrics.sample(out, name, labels + separator + "quantile=\"" + quantile + "\"",
+                    valueAt(snapshot, total, quantile) * unit);
+        }
+        Metrics.sample(out, name + "_sum", labels, sum.sum() * unit);
+        Metrics.sample(out, name + "_count", labels, total);
+    }
+
+    @Override
+    public void values(Map<String, Double> out, String name, String labels) {
+        out.put(Metrics.series(name + "_count", labels), (double) count());
+        out.put(Metrics.series(name + "_sum", labels), sum.sum() * unit);
+        out.put(Metrics.series(name + "_p50", labels), valueAt(0.5) * unit);
+        out.put(Metrics.series(name + "_p99", labels), valueAt(0.99) * unit);
+        out.put(Metrics.series(name + "_max", labels), max.get() * unit);
+    }
+}
@@ -0,0 +1,25 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.Map;
+
+/**
+ * A single time series, or, for histograms, the set of series describing one distribution.
+ */
+interface Metric {
+
+    /**
+     * Appends the current value of the metric in the Prometheus text exposition format, without the HELP and TYPE
+     * lines.
+     *
+     * @param out    The text being built.
+     * @param name   The name of the metric family.
+     * @param labels The labels of this series, formatted as <code>name="value"</code> pairs separated by commas, or an
+     *               empty string.
+     */
+    void render(StringBuilder out, String name, String labels);
+
+    /**
+     * Adds the current value of the metric to a map from series name to value, as exposed over JMX.
+     */
+    void values(Map<String, Double> out, String name, String labels);
+}
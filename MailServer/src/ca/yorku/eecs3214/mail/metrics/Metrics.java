@@ -0,0 +1,206 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import ca.yorku.eecs3214.mail.log.Log;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of the metrics kept by the mail servers. Metrics are created once, usually in static fields, and updated
+ * directly by the code they instrument; reading them never interferes with updating them.
+ * <p>
+ * Once <code>start()</code> is called, the current values are exposed over JMX, as the <code>Values</code> attribute of
+ * the MBean <code>ca.yorku.eecs3214.mail:type=Metrics</code>, and, if the system property
+ * <code>mail.metrics.port</code> is set, in the Prometheus text format at <code>/metrics</code> on that port. The HTTP
+ * endpoint only listens on the loopback interface unless <code>mail.metrics.address</code> specifies another address.
+ */
+public final class Metrics {
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+    private static boolean started = false;
+
+    private Metrics() {
+    }
+
+    /**
+     * Creates a counter.
+     *
+     * @param name   The name of the metric family, e.g., <code>mail_connections_accepted_total</code>.
+     * @param labels The labels distinguishing this series within the family, e.g., <code>protocol="smtp"</code>, or an
+     *               empty string.
+     * @param help   A description of the metric.
+     * @return The new counter.
+     */
+    public static Counter counter(String name, String labels, String help) {
+        return register(name, "counter", help, labels, new Counter());
+    }
+
+    /**
+     * Creates a gauge. See <code>counter()</code> for the parameters.
+     */
+    public static Gauge gauge(String name, String labels, String help) {
+        return register(name, "gauge", help, labels, new Gauge());
+    }
+
+    /**
+     * Creates a histogram, reported as a summary with the 50th, 90th, 99th and 99.9th percentiles. See
+     * <code>counter()</code> for the other parameters.
+     *
+     * @param unit Factor by which recorded values are multiplied when reported, e.g., 1e-9 for durations recorded in
+     *             nanoseconds, since durations are reported in seconds.
+     */
+    public static Histogram histogram(String name, String labels, String help, double unit) {
+        return register(name, "summary", help, labels, new Histogram(unit));
+    }
+
+    private static synchronized <M extends Metric> M register(String name, String type, String help, String labels, M metric) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " already registered as a " + family.type);
+        family.series.add(new Series(labels, metric));
+        return metric;
+    }
+
+    /**
+     * Returns the current value of all metrics in the Prometheus text exposition format.
+     *
+     * @return The text, one line per sample.
+     */
+    public static synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series)
+                series.metric.render(out, name, series.labels);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the current value of all metrics, indexed by series name. Histograms are summarized by their count, sum,
+     * median, 99th percentile and maximum.
+     *
+     * @return A map from series name, including labels, to value.
+     */
+    public static synchronized Map<String, Double> values() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            for (Series series : entry.getValue().series)
+                series.metric.values(values, entry.getKey(), series.labels);
+        }
+        return values;
+    }
+
+    /**
+     * Exposes the metrics over JMX and, if configured, over HTTP. Calling this method more than once has no further
+     * effect.
+     */
+    public static synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("ca.yorku.eecs3214.mail:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Metrics will not be available over JMX: " + e.getMessage());
+        }
+
+        int port = Integer.getInteger("mail.metrics.port", 0);
+        if (port <= 0)
+            return;
+        try {
+            String address = System.getProperty("mail.metrics.address");
+            InetAddress bindAddress = address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+            HttpServer server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+            server.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            });
+            server.setExecutor(null);
+            server.start();
+            Log.info("Metrics available at http://" + server.getAddress().getHostString() + ":" + port + "/metrics");
+        } catch (IOException e) {
+            Log.warn("Metrics will not be available over HTTP: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends one sample in the Prometheus text format.
+     */
+    static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(series(name, labels)).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    static String series(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    /**
+     * Management interface of the metrics, as exposed over JMX.
+     */
+    public interface MetricsMXBean {
+        Map<String, Double> getValues();
+
+        String getText();
+    }
+
+    private static class MetricsBean implements MetricsMXBean {
+        @Override
+        public Map<String, Double> getValues() {
+            return values();
+        }
+
+        @Override
+        public String getText() {
+            return scrape();
+        }
+    }
+
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final List<Series> series = new ArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static class Series {
+        private final String labels;
+        private final Metric metric;
+
+        Series(String labels, Metric metric) {
+            this.labels = labels;
+            this.metric = metric;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Counter;
+import ca.yorku.eecs3214.mail.metrics.Gauge;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client limits of the SMTP server, so that a single misbehaving client cannot take all the sessions or all the
+ * disk bandwidth. Each limit is disabled unless the corresponding system property is set to a positive value:
+ * <ul>
+ *     <li><code>mail.smtp.limit.connectionsPerMinute</code>: new connections from a single address;</li>
+ *     <li><code>mail.smtp.limit.sessionsPerAddress</code>: concurrent sessions from a single address;</li>
+ *     <li><code>mail.smtp.limit.recipientsPerMessage</code>: recipients of a single message;</li>
+ *     <li><code>mail.smtp.limit.bytesPerMinute</code>: bytes of message content from a single address, and, separately,
+ *     from a single sender.</li>
+ * </ul>
+ * Connections over the first two limits are refused at accept time with a single 421 reply. A RCPT command over the
+ * recipient limit is refused with 452, and a MAIL command from a client or sender over its byte rate (or whose SIZE
+ * parameter would take it over) with 451.
+ * <p>
+ * Rates are enforced with token buckets holding one minute's worth of tokens, each kept as a single number, the time at
+ * which the bucket will be full again (the generic cell rate algorithm), and updated with a compare-and-set, so
+ * checking a limit takes no lock. Message content is charged once received, so a client may go over its byte rate with
+ * one message, but is then refused until it is back under it. The state of each address and sender is kept in a table
+ * of at most <code>mail.smtp.limit.tableSize</code> (default 65536) entries; entries whose buckets are full and that
+ * have no session open carry no information, and are removed when the table is full. If the table is still full, new
+ * clients are not limited rather than refused.
+ */
+final class AdmissionControl {
+
+    private static final long PERIOD = TimeUnit.MINUTES.toNanos(1);
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    // Times are relative to the creation of the class, so they start at zero and never overflow in practice
+    private static final long EPOCH = System.nanoTime();
+
+    private static final AdmissionControl SMTP = new AdmissionControl("mail.smtp.limit", "smtp");
+
+    private final int connectionsPerMinute;
+    private final int sessionsPerAddress;
+    private final int recipientsPerMessage;
+    private final long bytesPerMinute;
+    private final int tableSize;
+
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong();
+    private final Client unlimited = new Client(null);
+
+    private final Counter rejectedConnectionRate;
+    private final Counter rejectedSessions;
+    private final Counter rejectedRecipients;
+    private final Counter rejectedBytes;
+    private final Counter untracked;
+    private final Gauge tracked;
+
+    private AdmissionControl(String prefix, String protocol) {
+        this.connectionsPerMinute = Integer.getInteger(prefix + ".connectionsPerMinute", 0);
+        this.sessionsPerAddress = Integer.getInteger(prefix + ".sessionsPerAddress", 0);
+        this.recipientsPerMessage = Integer.getInteger(prefix + ".recipientsPerMessage", 0);
+        this.bytesPerMinute = Long.getLong(prefix + ".bytesPerMinute", 0);
+        this.tableSize = Math.max(1, Integer.getInteger(prefix + ".tableSize", 65536));
+
+        String labels = "protocol=\"" + protocol + "\",reason=";
+        String help = "Connections and commands refused because a client went over one of its limits.";
+        rejectedConnectionRate = Metrics.counter("mail_admission_rejected_total", labels + "\"connection_rate\"", help);
+        rejectedSessions = Metrics.counter("mail_admission_rejected_total", labels + "\"sessions\"", help);
+        rejectedRecipients = Metrics.counter("mail_admission_rejected_total", labels + "\"recipients\"", help);
+        rejectedBytes = Metrics.counter("mail_admission_rejected_total", labels + "\"bytes\"", help);
+        untracked = Metrics.counter("mail_admission_untracked_total", "protocol=\"" + protocol + "\"",
+                "Clients admitted without limits because the table of clients was full.");
+        tracked = Metrics.gauge("mail_admission_entries", "protocol=\"" + protocol + "\"",
+                "Addresses and senders currently tracked by admission control.");
+    }
+
+    /**
+     * Returns the limits of the SMTP server.
+     *
+     * @return The admission control of the SMTP server.
+     */
+    static AdmissionControl smtp() {
+        return SMTP;
+    }
+
+    /**
+     * Returns a client without any limit, e.g., for sessions that are not associated to a network connection.
+     *
+     * @return The unlimited client.
+     */
+    Client unlimited() {
+        return unlimited;
+    }
+
+    /**
+     * Decides whether a new connection is accepted. If it is, the returned client counts as an open session from its
+     * address until <code>release()</code> is called.
+     *
+     * @param address The address the connection comes from.
+     * @return The client the session is accounted to, or null if the connection must be refused.
+     */
+    Client admit(InetAddress address) {
+        if (address == null || connectionsPerMinute <= 0 && sessionsPerAddress <= 0 && bytesPerMinute <= 0)
+            return unlimited;
+        long now = now();
+        while (true) {
+            Entry entry = entry(address, now);
+            if (entry == null) {
+                untracked.increment();
+                return unlimited;
+            }
+            int sessions = entry.sessions.get();
+            if (sessions < 0)
+                continue; // Removed from the table concurrently, look it up again
+            if (sessionsPerAddress > 0 && sessions >= sessionsPerAddress) {
+                rejectedSessions.increment();
+                return null;
+            }
+            if (!entry.sessions.compareAndSet(sessions, sessions + 1))
+                continue;
+            // The open session keeps the entry in the table from now on
+            if (connectionsPerMinute > 0 && !take(entry.connections, PERIOD / connectionsPerMinute, now)) {
+                entry.sessions.decrementAndGet();
+                rejectedConnectionRate.increment();
+                return null;
+            }
+            return new Client(entry);
+        }
+    }
+
+    /**
+     * Returns the entry of an address or sender, creating it if needed, or null if the table is full.
+     */
+    private Entry entry(Object key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.sessions.get() >= 0)
+            return entry;
+        if (entry != null)
+            entries.remove(key, entry);
+        if (entries.size() >= tableSize && !sweep(now))
+            return null;
+        return entries.computeIfAbsent(key, k -> {
+            tracked.increment();
+            return new Entry();
+        });
+    }
+
+    /**
+     * Removes the entries that carry no information, i.e., that have full buckets and no open session. Only one thread
+     * sweeps at a time, at most once per interval.
+     *
+     * @return true if the table has room for a new entry.
+     */
+    private boolean sweep(long now) {
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL))
+            return entries.size() < tableSize;
+        entries.forEach((key, entry) -> {
+            if (entry.connections.get() <= now && entry.bytes.get() <= now
+                    && entry.sessions.compareAndSet(0, -1)) {
+                // A bucket may have been charged after the check, which the charging thread detects and repeats
+                if (entries.remove(key, entry))
+                    tracked.decrement();
+            }
+        });
+        return entries.size() < tableSize;
+    }
+
+    /**
+     * Takes tokens from a bucket if it has enough of them.
+     *
+     * @param bucket The time at which the bucket is full.
+     * @param cost   The time it takes for the tokens to be replenished.
+     * @param now    The current time.
+     * @return true if the tokens were taken, and false if the bucket does not have enough of them.
+     */
+    private static boolean take(AtomicLong bucket, long cost, long now) {
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + cost;
+            if (next - now > PERIOD)
+                return false;
+            if (bucket.compareAndSet(full, next))
+                return true;
+        }
+    }
+
+    /**
+     * Returns true if a bucket has enough tokens, without taking them.
+     */
+    private static boolean hasTokens(AtomicLong bucket, long cost, long now) {
+        return Math.max(bucket.get(), now) + Math.min(cost, PERIOD) - now <= PERIOD;
+    }
+
+    /**
+     * Takes tokens from a bucket even if it does not have enough of them, leaving it in debt.
+     */
+    private static void charge(AtomicLong bucket, long cost, long now) {
+        long full;
+        do {
+            full = bucket.get();
+        } while (!bucket.compareAndSet(full, Math.max(full, now) + cost));
+    }
+
+    private long byteCost(long bytes) {
+        return Math.min(bytes, Long.MAX_VALUE / PERIOD) * PERIOD / bytesPerMinute;
+    }
+
+    private static long now() {
+        return System.nanoTime() - EPOCH;
+    }
+
+    private static String senderKey(String sender) {
+        return sender.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * State of an address or sender: when each of its buckets is full, and how many sessions it has open, or -1 once
+     * it has been removed from the table.
+     */
+    private static final class Entry {
+        private final AtomicLong connections = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger sessions = new AtomicInteger();
+    }
+
+    /**
+     * A session admitted by the admission control, through which its commands are checked against the limits of its
+     * address and sender.
+     */
+    final class Client {
+
+        private final Entry entry;
+        private boolean released = false;
+
+        private Client(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Checks if a message may have one more recipient.
+         *
+         * @param recipients The number of recipients already accepted for the message.
+         * @return true if another recipient is accepted, and false otherwise.
+         */
+        boolean allowRecipient(int recipients) {
+            if (recipientsPerMessage <= 0 || recipients < recipientsPerMessage)
+                return true;
+            rejectedRecipients.increment();
+            return false;
+        }
+
+        /**
+         * Checks if a new message is accepted from this client and sender, i.e., if neither is over its byte rate,
+         * including the size declared for the message, if any.
+         *
+         * @param sender       The address of the sender of the message.
+         * @param declaredSize The size of the message declared with the SIZE parameter, or 0.
+         * @return true if the message is accepted, and false otherwise.
+         */
+        boolean allowMessage(String sender, long declaredSize) {
+            if (bytesPerMinute <= 0)
+                return true;
+            long now = now();
+            long cost = byteCost(declaredSize);
+            boolean allowed = (entry == null || hasTokens(entry.bytes, cost, now));
+            if (allowed) {
+                Entry senderEntry = entry(senderKey(sender), now);
+                allowed = senderEntry == null || hasTokens(senderEntry.bytes, cost, now);
+            }
+            if (!allowed)
+                rejectedBytes.increment();
+            return allowed;
+        }
+
+        /**
+         * Charges the content of a message received from this client and sender to their byte rates.
+         *
+         * @param sender The address of the sender of the message.
+         * @param bytes  The size of the message.
+         */
+        void chargeMessage(String sender, long bytes) {
+            if (bytesPerMinute <= 0 || bytes <= 0)
+                return;
+            long now = now();
+            long cost = byteCost(bytes);
+            if (entry != null)
+                charge(entry.bytes, cost, now);
+            String key = senderKey(sender);
+            Entry senderEntry;
+            do {
+                senderEntry = entry(key, now);
+                if (senderEntry == null)
+                    return;
+                charge(senderEntry.bytes, cost, now);
+                // If the entry was removed meanwhile, the charge is lost with it, so it is made again on a new entry
+            } while (senderEntry.sessions.get() < 0);
+        }
+
+        /**
+         * Closes the session of this client. Must be called once the connection is closed; further calls have no
+         * effect.
+         */
+        void release() {
+            if (released || entry == null)
+                return;
+            released = true;
+            entry.sessions.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.log.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * Runs the sessions of accepted client connections on behalf of a server's accept loop. The dispatcher either starts
+ * a new virtual thread for every connection, which is cheap enough to allow a very large number of concurrent clients,
+ * or runs connections on a bounded pool of platform threads. In both modes an optional limit on the number of
+ * concurrent sessions may be configured, in which case connections above the limit are handed to a rejection handler
+ * immediately instead of being queued.
+ */
+public class ConnectionDispatcher implements AutoCloseable {
+
+    /**
+     * Strategy used to run individual sessions.
+     */
+    public enum Mode {
+        /** One virtual thread per connection. */
+        VIRTUAL,
+        /** A fixed pool of platform threads, one per concurrent session. */
+        BOUNDED
+    }
+
+    public static final int DEFAULT_BOUNDED_MAX_SESSIONS = 1000;
+
+    private final ExecutorService executor;
+    private final Semaphore sessionPermits;
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param mode        The strategy used to run individual sessions.
+     * @param maxSessions The maximum number of concurrent sessions. A value of zero or less means no limit in VIRTUAL
+     *                    mode, and the default limit in BOUNDED mode.
+     * @param threadName  Prefix used to name the threads running the sessions.
+     */
+    public ConnectionDispatcher(Mode mode, int maxSessions, String threadName) {
+        if (mode == Mode.BOUNDED) {
+            if (maxSessions <= 0)
+                maxSessions = DEFAULT_BOUNDED_MAX_SESSIONS;
+            ThreadFactory factory = Thread.ofPlatform().name(threadName, 0).factory();
+            this.executor = Executors.newFixedThreadPool(maxSessions, factory);
+        } else {
+            ThreadFactory factory = Thread.ofVirtual().name(threadName, 0).factory();
+            this.executor = Executors.newThreadPerTaskExecutor(factory);
+        }
+        this.sessionPermits = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+    }
+
+    /**
+     * Creates a new dispatcher configured from system properties. The property <code>prefix.executor</code> selects
+     * the mode (<code>virtual</code>, the default, or <code>bounded</code>), and <code>prefix.maxSessions</code> the
+     * maximum number of concurrent sessions.
+     *
+     * @param prefix     The prefix of the system properties to be used, e.g., <code>mail.smtp</code>.
+     * @param threadName Prefix used to name the threads running the sessions.
+     * @return A new dispatcher.
+     */
+    public static ConnectionDispatcher fromSystemProperties(String prefix, String threadName) {
+        Mode mode = Mode.valueOf(System.getProperty(prefix + ".executor", "virtual").toUpperCase());
+        int maxSessions = Integer.getInteger(prefix + ".maxSessions", 0);
+        return new ConnectionDispatcher(mode, maxSessions, threadName);
+    }
+
+    /**
+     * Starts a session for a newly accepted connection. If the maximum number of concurrent sessions has been reached,
+     * the connection is passed to the rejection handler in the calling thread, which is expected to send a short
+     * response and close the socket.
+     *
+     * @param socket           The socket associated to the accepted connection.
+     * @param factory          Creates the session object responsible for the connection.
+     * @param rejectionHandler Handles connections that cannot be served at this time.
+     */
+    public void dispatch(Socket socket, SessionFactory factory, Consumer<Socket> rejectionHandler) {
+        if (sessionPermits != null && !sessionPermits.tryAcquire()) {
+            rejectionHandler.accept(socket);
+            return;
+        }
+        try {
+            Runnable session = factory.create(socket);
+            executor.execute(() -> {
+                try {
+                    session.run();
+                } finally {
+                    if (sessionPermits != null)
+                        sessionPermits.release();
+                }
+            });
+        } catch (IOException e) {
+            if (sessionPermits != null)
+                sessionPermits.release();
+            Log.warn("Error setting up an individual client's handler.", e);
+            closeQuietly(socket);
+        } catch (RejectedExecutionException e) {
+            if (sessionPermits != null)
+                sessionPermits.release();
+            rejectionHandler.accept(socket);
+        }
+    }
+
+    /**
+     * Stops accepting new sessions. Sessions already running are allowed to complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do, the connection is gone anyway
+        }
+    }
+
+    /**
+     * Creates the object responsible for the communication with an individual client.
+     */
+    @FunctionalInterface
+    public interface SessionFactory {
+        Runnable create(Socket socket) throws IOException;
+    }
+}
@@ -1,19 +1,47 @@
 package ca.yorku.eecs3214.mail.net;
 
+import ca.yorku.eecs3214.mail.log.Log;
 import ca.yorku.eecs3214.mail.mailbox.MailMessage;
 import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.metrics.Counter;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
-public class MyPOPServer extends Thread {
+public class MyPOPServer implements Runnable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] TERMINATOR = {'.', '\r', '\n'};
+
+    // Longest command line accepted, including the line terminator, as in RFC 2449
+    private static final int MAX_LINE_LENGTH = Math.max(16, Integer.getInteger("mail.pop.maxLineLength", 255));
+    // Autologout timer, at least 10 minutes as per RFC 1939
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(Long.getLong("mail.pop.timeout.idle", 600));
+    private static final Counter IDLE_TIMEOUTS = ServerMetrics.POP.timeouts("idle");
+    // Message content is written to the socket in chunks of this size, so that a slow transfer is not seen as idle
+    private static final int WRITE_CHUNK_SIZE = 65536;
 
     private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
+    private final InputStream socketIn;
+    private final OutputStream socketOut;
+    private final WritableByteChannel socketChannel;
 
-    // TODO Additional properties, if needed
+    private Mailbox mailbox = null;
+    private boolean authenticated = false;
+    private boolean isQuit = false;
+    private final byte[] line = new byte[MAX_LINE_LENGTH - 1];
+    private boolean lineTooLong = false;
+    private final SessionTimeout timeout = new SessionTimeout(this::shutdownInput, this::closeSocket);
 
     /**
      * Initializes an object responsible for a connection to an individual client.
@@ -24,8 +52,18 @@ public class MyPOPServer extends Thread {
      */
     public MyPOPServer(Socket socket) throws IOException {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.socketIn = new BufferedInputStream(socket.getInputStream());
+        // Each write that reaches the socket pushes the idle timer back, so responses being read slowly do not time out
+        this.socketOut = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                resetIdleTimer();
+            }
+        });
+        // Sockets accepted through a channel allow message content to be written straight from mapped files, without
+        // copying it into the Java heap
+        this.socketChannel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
     }
 
     /**
@@ -35,26 +73,410 @@ public class MyPOPServer extends Thread {
      * protocol. Empty request lines should be ignored. Only returns if the
      * connection is terminated or if the QUIT command is issued. Must close the
      * socket connection before returning.
+     * <p>
+     * Command lines longer than <code>mail.pop.maxLineLength</code> (default 255) bytes are refused without being
+     * buffered, and a session with no complete command for <code>mail.pop.timeout.idle</code> (default 600) seconds is
+     * closed without entering the UPDATE state, as per RFC 1939. While a response is being written, the timer only
+     * expires if the client reads nothing of it for that long.
      */
     @Override
     public void run() {
         // Use a try-with-resources block to ensure that the socket is closed
         // when the method returns
+        ServerMetrics.POP.activeSessions.increment();
         try (this.socket) {
+            resetIdleTimer();
+            sendLine("+OK POP3 server ready");
+            socketOut.flush();
 
-            // TODO Complete this method
+            String inputLine;
+            while (!isQuit && (inputLine = readLine()) != null) {
+                if (lineTooLong) {
+                    lineTooLong = false;
+                    sendLine("-ERR Line too long");
+                } else if (inputLine.trim().isEmpty()) {
+                    continue;
+                } else {
+                    handleCommand(inputLine);
+                }
+                resetIdleTimer();
+
+                // Only flush when the next read would block, or when the connection is about to be closed
+                if (isQuit || socketIn.available() == 0) {
+                    socketOut.flush();
+                }
+            }
 
         } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
+            if (!timeout.isExpired())
+                Log.warn("Error in client's connection handling.", e);
+        } finally {
+            timeout.cancel();
+            if (mailbox != null) {
+                mailbox.unlockMaildrop();
+            }
+            ServerMetrics.POP.activeSessions.decrement();
         }
     }
 
+    private void resetIdleTimer() {
+        timeout.armAt(System.nanoTime() + IDLE_TIMEOUT, IDLE_TIMEOUTS);
+    }
+
+    /**
+     * Reads a command line, without its line terminator. The bytes of a line longer than the maximum are discarded as
+     * they arrive, and an empty line is returned with <code>lineTooLong</code> set.
+     *
+     * @return The line, or null if the end of the stream was reached.
+     */
+    private String readLine() throws IOException {
+        int length = 0;
+        boolean tooLong = false;
+        int b;
+        while ((b = socketIn.read()) != '\n') {
+            if (b < 0) {
+                if (length == 0 && !tooLong)
+                    return null;
+                break;
+            }
+            if (length < line.length)
+                line[length++] = (byte) b;
+            else
+                tooLong = true;
+        }
+        if (tooLong) {
+            lineTooLong = true;
+            return "";
+        }
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void shutdownInput() {
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do
+        }
+    }
+
+    private void handleCommand(String inputLine) throws IOException {
+        String[] parts = inputLine.trim().split("\\s+");
+        String command = parts[0].toUpperCase();
+
+        switch (command) {
+            case "USER":
+                handleUser(parts);
+                return;
+            case "PASS":
+                handlePass(inputLine);
+                return;
+            case "QUIT":
+                isQuit = true;
+                if (authenticated) {
+                    try {
+                        mailbox.deleteMessagesTaggedForDeletion();
+                    } catch (Mailbox.MailboxLockedException e) {
+                        sendLine("-ERR Some deleted messages not removed");
+                        return;
+                    }
+                }
+                socketOut.write(ServerIdentity.get().popSignOffReply());
+                return;
+            case "NOOP":
+                if (authenticated) {
+                    sendLine("+OK");
+                    return;
+                }
+                break;
+            case "STAT":
+            case "LIST":
+            case "UIDL":
+            case "RETR":
+            case "TOP":
+            case "DELE":
+            case "RSET":
+                if (authenticated) {
+                    handleTransactionCommand(command, parts);
+                    return;
+                }
+                break;
+            default:
+                sendLine("-ERR Unknown command");
+                return;
+        }
+        sendLine("-ERR Command not valid in this state");
+    }
+
+    private void handleUser(String[] parts) throws IOException {
+        if (authenticated) {
+            sendLine("-ERR Already authenticated");
+            return;
+        }
+        if (parts.length != 2) {
+            sendLine("-ERR Syntax: USER name");
+            return;
+        }
+        try {
+            mailbox = new Mailbox(parts[1]);
+            sendLine("+OK " + parts[1] + " is a valid mailbox");
+        } catch (Mailbox.InvalidUserException e) {
+            mailbox = null;
+            sendLine("-ERR No such user");
+        }
+    }
+
+    private void handlePass(String inputLine) throws IOException {
+        if (authenticated) {
+            sendLine("-ERR Already authenticated");
+            return;
+        }
+        if (mailbox == null) {
+            sendLine("-ERR USER required before PASS");
+            return;
+        }
+        // The password is everything after the command, and may contain spaces
+        String trimmed = inputLine.trim();
+        int space = trimmed.indexOf(' ');
+        String password = space < 0 ? null : trimmed.substring(space + 1);
+        try {
+            // RFC 1939 requires an exclusive lock on the maildrop for the rest of the session
+            mailbox.openMaildrop(password);
+            authenticated = true;
+            sendLine("+OK Mailbox has " + mailbox.size(false) + " messages (" +
+                    mailbox.getTotalUndeletedFileSize(false) + " octets)");
+        } catch (Mailbox.MailboxNotAuthenticatedException e) {
+            mailbox = null;
+            sendLine("-ERR Invalid password");
+        } catch (Mailbox.MailboxLockedException e) {
+            mailbox = null;
+            sendLine("-ERR Maildrop already locked");
+        }
+    }
+
+    private void handleTransactionCommand(String command, String[] parts) throws IOException {
+        switch (command) {
+            case "STAT":
+                sendLine("+OK " + mailbox.size(false) + " " + mailbox.getTotalUndeletedFileSize(false));
+                return;
+
+            case "LIST":
+            case "UIDL":
+                if (parts.length > 1) {
+                    MailMessage message = getMessage(parts[1]);
+                    if (message != null) {
+                        sendLine("+OK " + parts[1] + " " + listValue(command, message));
+                    }
+                    return;
+                }
+                sendLine("+OK " + mailbox.size(false) + " messages");
+                for (int i = 1; i <= mailbox.size(true); i++) {
+                    MailMessage message = mailbox.getMailMessage(i);
+                    if (!message.isDeleted()) {
+                        sendLine(i + " " + listValue(command, message));
+                    }
+                }
+                socketOut.write(TERMINATOR);
+                return;
+
+            case "RETR":
+            case "TOP": {
+                if (parts.length < 2 || (command.equals("TOP") && parts.length < 3)) {
+                    sendLine("-ERR Syntax: " + (command.equals("TOP") ? "TOP msg n" : "RETR msg"));
+                    return;
+                }
+                MailMessage message = getMessage(parts[1]);
+                if (message == null) {
+                    return;
+                }
+                long bodyLines = -1;
+                if (command.equals("TOP")) {
+                    try {
+                        bodyLines = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        bodyLines = -2;
+                    }
+                    if (bodyLines < 0) {
+                        sendLine("-ERR Invalid number of lines");
+                        return;
+                    }
+                }
+                sendMessage(message, bodyLines);
+                return;
+            }
+
+            case "DELE": {
+                if (parts.length < 2) {
+                    sendLine("-ERR Syntax: DELE msg");
+                    return;
+                }
+                MailMessage message = getMessage(parts[1]);
+                if (message != null) {
+                    message.tagForDeletion();
+                    sendLine("+OK Message " + parts[1] + " deleted");
+                }
+                return;
+            }
+
+            case "RSET":
+                for (MailMessage message : mailbox) {
+                    message.undelete();
+                }
+                sendLine("+OK Mailbox has " + mailbox.size(false) + " messages (" +
+                        mailbox.getTotalUndeletedFileSize(false) + " octets)");
+                return;
+
+            default:
+                sendLine("-ERR Unknown command");
+        }
+    }
+
+    private static String listValue(String command, MailMessage message) {
+        if (command.equals("UIDL")) {
+            // N.mail has the unique ID N, and N.mail.z has N.z, so plain messages keep the IDs they always had
+            String name = message.getFile().getName();
+            int suffix = name.lastIndexOf(Mailbox.MAIL_FILE_SUFFIX);
+            return suffix < 0 ? name : name.substring(0, suffix) + name.substring(suffix + Mailbox.MAIL_FILE_SUFFIX.length());
+        }
+        return Long.toString(message.getFileSize());
+    }
+
+    /**
+     * Returns the message with the specified number, or sends an error response and returns null if there is no such
+     * message or it is tagged for deletion.
+     */
+    private MailMessage getMessage(String number) throws IOException {
+        try {
+            MailMessage message = mailbox.getMailMessage(Integer.parseInt(number));
+            if (!message.isDeleted()) {
+                return message;
+            }
+            sendLine("-ERR Message " + number + " already deleted");
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            sendLine("-ERR No such message");
+        }
+        return null;
+    }
+
+    /**
+     * Sends a message as a multiline response. The message is sent from a memory-mapped view of its file, so the
+     * content is not copied through the Java heap; the view is only scanned for lines starting with a dot, and the
+     * extra dot required by the byte-stuffing rule is inserted between the segments written to the socket.
+     *
+     * @param message   The message to be sent.
+     * @param bodyLines The number of lines of the body to be sent (TOP), or a negative value for the whole message
+     *                  (RETR).
+     */
+    private void sendMessage(MailMessage message, long bodyLines) throws IOException {
+        if (message.isCompressed()) {
+            sendCompressedMessage(message, bodyLines);
+            return;
+        }
+        ByteBuffer content = bodyLines < 0 ? message.map() : message.mapTop(bodyLines);
+        sendLine("+OK " + (bodyLines < 0 ? message.getFileSize() + " octets" : "top of message follows"));
+
+        int end = content.limit();
+        int segmentStart = 0;
+        byte previous = '\n';
+        for (int i = 0; i < end; i++) {
+            byte b = content.get(i);
+            if (b == '.' && previous == '\n') {
+                write(content.slice(segmentStart, i - segmentStart));
+                socketOut.write('.');
+                segmentStart = i;
+            }
+            previous = b;
+        }
+        write(content.slice(segmentStart, end - segmentStart));
+        if (previous != '\n') {
+            socketOut.write(CRLF);
+        }
+        socketOut.write(TERMINATOR);
+    }
+
+    /**
+     * Sends a message stored compressed as a multiline response. Such a message cannot be mapped, so it is decompressed
+     * as it is sent, with the same byte-stuffing as <code>sendMessage()</code>, and with TOP stopping after the headers
+     * and the requested number of body lines.
+     */
+    private void sendCompressedMessage(MailMessage message, long bodyLines) throws IOException {
+        long headerLength = bodyLines < 0 ? -1 : message.getHeaderLength();
+        sendLine("+OK " + (bodyLines < 0 ? message.getFileSize() + " octets" : "top of message follows"));
+
+        long position = 0;
+        long remainingLines = bodyLines;
+        byte previous = '\n';
+        try (InputStream in = message.openContent()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            boolean done = false;
+            while (!done && (count = in.read(buffer)) > 0) {
+                int end = count;
+                int segmentStart = 0;
+                for (int i = 0; i < count; i++, position++) {
+                    byte b = buffer[i];
+                    if (b == '.' && previous == '\n') {
+                        socketOut.write(buffer, segmentStart, i - segmentStart);
+                        socketOut.write('.');
+                        segmentStart = i;
+                    }
+                    previous = b;
+                    if (bodyLines >= 0 && (position < headerLength
+                            ? bodyLines == 0 && position + 1 == headerLength
+                            : b == '\n' && --remainingLines == 0)) {
+                        end = i + 1;
+                        done = true;
+                        break;
+                    }
+                }
+                socketOut.write(buffer, segmentStart, end - segmentStart);
+            }
+        }
+        if (previous != '\n') {
+            socketOut.write(CRLF);
+        }
+        socketOut.write(TERMINATOR);
+    }
+
+    private void write(ByteBuffer segment) throws IOException {
+        if (!segment.hasRemaining()) {
+            return;
+        }
+        // Responses written so far must reach the socket before the message content
+        socketOut.flush();
+        while (segment.hasRemaining()) {
+            int chunk = Math.min(segment.remaining(), WRITE_CHUNK_SIZE);
+            ByteBuffer slice = segment.slice(segment.position(), chunk);
+            while (slice.hasRemaining()) {
+                socketChannel.write(slice);
+            }
+            segment.position(segment.position() + chunk);
+            resetIdleTimer();
+        }
+    }
+
+    private void sendLine(String line) throws IOException {
+        socketOut.write(line.getBytes(StandardCharsets.UTF_8));
+        socketOut.write(CRLF);
+    }
+
     /**
      * Main process for the POP3 server. Handles the argument parsing and
      * creates a listening server socket. Repeatedly accepts new connections
      * from individual clients, creating a new server instance that handles
-     * communication with that client in a separate thread.
+     * communication with that client. Sessions are run by a
+     * {@link ConnectionDispatcher}, configured with the
+     * <code>mail.pop.executor</code> and <code>mail.pop.maxSessions</code>
+     * system properties. Metrics are exposed as described in {@link Metrics}.
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or
@@ -67,22 +489,40 @@ public class MyPOPServer extends Thread {
                     "This application must be executed with exactly one argument, the listening port.");
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-            serverSocket.setReuseAddress(true);
+        Metrics.start();
+        ServerIdentity.start();
 
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             ConnectionDispatcher dispatcher = ConnectionDispatcher.fromSystemProperties("mail.pop", "pop-session-")) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(Integer.parseInt(args[0])));
+
+            Log.info("Waiting for connections on port " + serverChannel.socket().getLocalPort() + "...");
             // noinspection InfiniteLoopStatement
             while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
-                try {
-                    MyPOPServer handler = new MyPOPServer(socket);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
-                }
+                SocketChannel channel = serverChannel.accept();
+                ServerMetrics.POP.accepted.increment();
+                if (Log.isEnabled(Log.Level.DEBUG))
+                    Log.debug("Accepted a connection from " + channel.getRemoteAddress());
+                dispatcher.dispatch(channel.socket(), MyPOPServer::new, MyPOPServer::rejectBusy);
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Rejects a connection that cannot be served because the server is at its
+     * session limit.
+     *
+     * @param socket The socket associated to the rejected connection.
+     */
+    static void rejectBusy(Socket socket) {
+        ServerMetrics.POP.rejected.increment();
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write("-ERR Too many connections, try again later\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone already, nothing else to do
+        }
+    }
+}
@@ -1,52 +1,22 @@
-// We are having trouble with the DATA and RSET commands, the tests are
-// not helping because they are expecting the wrong email to return when the output shows that the email address returned is correct. 
-// It was inputed for this command and the command is returning the inputed email address. 
-
-// For example, this is the error message: 
-
-// org.opentest4j.AssertionFailedError: Message content in saved message file does not match message sent in connection, 
-// or writer was not flushed/closed before the successful response. ==> expected: <To: <john.doe@example.com>> but was: <To: <another_valid_user@example.com>>
-
-// However, the output shows that the email address is correct.
-
-// Command: EHLO somehostname
-// Command: MAIL FROM:<sender@example.com>
-// Command: RCPT TO:<valid_user1@example.com>
-// Command: RSET
-// Command: MAIL FROM:<sender@example.com>
-// Command: RCPT TO:<another_valid_user@example.com>
-// Command: DATA
-// Command: .
-
 package ca.yorku.eecs3214.mail.net;
 
-import ca.yorku.eecs3214.mail.mailbox.MailWriter;
-import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.log.Log;
+import ca.yorku.eecs3214.mail.mailbox.DeliveryQueue;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
 
-public class MySMTPServer extends Thread {
+public class MySMTPServer implements Runnable {
 
     private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
-
-    private String sender = null;
-    private final List<String> recipients = new ArrayList<>();
-    private boolean waitingForData = false;
-    private StringBuilder messageData = new StringBuilder();
-    private boolean isQuit = false;
-    private boolean isHeloReceived = false;
-
-    // Email address pattern for validation
-    private static final Pattern EMAIL_PATTERN = Pattern.compile("^[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$");
+    private final InputStream socketIn;
+    private final OutputStream socketOut;
+    private final SmtpSession session;
+    private final SmtpLineReader reader = new SmtpLineReader();
+    private final SmtpTimeouts timeouts = new SmtpTimeouts(this::shutdownInput, this::closeSocket);
 
     /**
      * Initializes an object responsible for a connection to an individual client.
@@ -55,9 +25,27 @@ public class MySMTPServer extends Thread {
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
     public MySMTPServer(Socket socket) throws IOException {
+        this(socket, AdmissionControl.smtp().unlimited());
+    }
+
+    /**
+     * Initializes an object responsible for a connection admitted by {@link AdmissionControl}. The client is released
+     * once the connection is closed, or if this constructor fails.
+     *
+     * @param socket The socket associated to the accepted connection.
+     * @param client The client the session is accounted to.
+     * @throws IOException If there is an error attempting to retrieve the socket's information.
+     */
+    MySMTPServer(Socket socket, AdmissionControl.Client client) throws IOException {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.session = new SmtpSession(client);
+        try {
+            this.socketIn = socket.getInputStream();
+            this.socketOut = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
     }
 
     /**
@@ -65,285 +53,114 @@ public class MySMTPServer extends Thread {
      * read requests, process the individual operation, and return a response, according to the SMTP protocol. Empty
      * request lines should be ignored. Only returns if the connection is terminated or if the QUIT command is issued.
      * Must close the socket connection before returning.
+     * <p>
+     * Responses are buffered and only flushed once all input already received from the client has been processed, so
+     * a client using PIPELINING (RFC 2920) that sends a batch of commands in a single write receives all the
+     * corresponding responses in a single write as well.
+     * <p>
+     * The session is closed if the client is idle or too slow for the current phase, see {@link SmtpTimeouts}: the
+     * input of the socket is shut down, which ends the blocked read, and a 421 reply is sent before closing the socket.
      */
     @Override
     public void run() {
+        ServerMetrics.SMTP.activeSessions.increment();
         try (this.socket) {
             // Send SMTP welcome message
-            socketOut.println("220 " + getHostName() + " SMTP server ready");
-
-            String inputLine;
-            while ((inputLine = socketIn.readLine()) != null && !isQuit) {
-                if (inputLine.trim().isEmpty()) {
-                    continue;
-                }
-
-                System.out.println("Received: " + inputLine);
-
-                if (waitingForData) {
-                    // Process message content during DATA command
-                    handleData(inputLine);
-                } else {
-                    // Process SMTP commands
-                    String response = handleCommand(inputLine);
-                    socketOut.println(response);
+            timeouts.start();
+            socketOut.write(session.greeting());
+            socketOut.flush();
+
+            ByteBuffer buffer = reader.buffer();
+            while (!session.isQuit()) {
+                int count = socketIn.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (count < 0) {
+                    if (timeouts.isExpired()) {
+                        socketOut.write(ServerIdentity.get().timedOut());
+                        socketOut.flush();
+                    }
+                    break;
                 }
+                buffer.position(buffer.position() + count);
+                reader.process(session, this::sendResponse);
+                timeouts.afterInput(session);
 
-                // Check if QUIT command was processed
-                if (isQuit) {
-                    socket.close();
-                    return;
+                // Only flush when the next read would block, or when the connection is about to be closed
+                if (session.isQuit() || socketIn.available() == 0) {
+                    socketOut.flush();
                 }
             }
 
         } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
-        }
-    }
-
-    private boolean isUnsupportedCommand(String command) {
-        // List of known SMTP commands that we don't support
-        String[] unsupportedCommands = {
-                "EXPN", "HELP", "AUTH", "STARTTLS", "TURN", "SOML", "SEND", "SAML"
-        };
-
-        for (String unsupported : unsupportedCommands) {
-            if (command.equalsIgnoreCase(unsupported)) {
-                return true;
-            }
+            if (!timeouts.isExpired())
+                Log.warn("Error in client's connection handling.", e);
+        } finally {
+            timeouts.cancel();
+            session.close();
+            ServerMetrics.SMTP.activeSessions.decrement();
         }
-        return false;
     }
 
-    private String handleCommand(String inputLine) {
-        String[] parts = inputLine.trim().split("\\s+", 2);
-        String command = parts[0].toUpperCase();
-        String argument = parts.length > 1 ? parts[1].trim() : null;
-
-        // Process VRFY command
-        if (command.equals("VRFY")) {
-            if (argument == null || argument.isEmpty()) {
-                return "501 Syntax: VRFY <address>";
-            }
-            if (!Mailbox.isValidUser(argument)) {
-                return "550 User not found";
-            }
-            String vrfyAddress = extractEmailAddress(argument);
-            if (vrfyAddress == null) {
-                return "501 Syntax error in parameters or arguments";
-            }
-            return "250 " + vrfyAddress;
-        }
-
-        // Process MAIL command
-        if (command.equals("MAIL")) {
-            if (!isHeloReceived) {
-                return "503 Bad sequence of commands";
-            }
-
-            if (!inputLine.matches("^MAIL\\s+FROM:\\s*<.*>$")) {
-                return "500 Syntax error, command unrecognized";
-            }
-
-            String mailArg = inputLine.substring("MAIL FROM:".length()).trim();
-            if (mailArg.isEmpty()) {
-                return "501 Syntax error in parameters or arguments";
-            }
-
-            String fromAddress = extractEmailAddress(mailArg);
-            if (fromAddress == null) {
-                return "501 Syntax error in parameters or arguments";
-            }
-
-            recipients.clear();
-            sender = fromAddress;
-            return "250 OK";
-        }
-
-        // Process RCPT command
-        if (command.equals("RCPT")) {
-            if (!isHeloReceived) {
-                return "503 Bad sequence of commands";
-            }
-            if (sender == null) {
-                return "503 Need MAIL before RCPT";
-            }
-
-            if (!inputLine.matches("^RCPT\\s+TO:\\s*<.*>$")) {
-                return "500 Syntax error, command unrecognized";
-            }
-
-            String toArg = inputLine.substring("RCPT TO:".length()).trim();
-            if (toArg.isEmpty()) {
-                return "501 Syntax error in parameters or arguments";
-            }
-
-            String toAddress = extractEmailAddress(toArg);
-            if (toAddress == null) {
-                String potentialUser = toArg.replaceAll("^<|>$", "").trim();
-                if (!Mailbox.isValidUser(potentialUser)) {
-                    return "550 No such user here";
-                }
-                return "501 Syntax error in parameters or arguments";
-            }
-
-            if (!Mailbox.isValidUser(toAddress)) {
-                return "550 No such user here";
-            }
-
-            recipients.add(toAddress);
-            return "250 OK";
-        }
-
-        // Process DATA command
-        if (command.equals("DATA")) {
-            if (!isHeloReceived) {
-                return "503 Bad sequence of commands";
-            }
-            if (sender == null) {
-                return "503 Need MAIL before DATA";
-            }
-            if (recipients.isEmpty()) {
-                return "503 Need RCPT before DATA";
-            }
-            waitingForData = true;
-            messageData.setLength(0);
-            return "354 Start mail input; end with <CRLF>.<CRLF>";
-        }
-
-        // Check command sequence
-        if (!isHeloReceived && !command.equals("HELO") && !command.equals("EHLO") &&
-                !command.equals("QUIT") && !command.equals("NOOP") && !command.equals("RSET")) {
-            return "503 Bad sequence of commands";
-        }
-
-        // Process remaining commands
-        switch (command) {
-            case "HELO":
-            case "EHLO":
-                if (argument == null || argument.isEmpty()) {
-                    return "501 Syntax: HELO/EHLO hostname";
-                }
-                isHeloReceived = true;
-                return "250 " + getHostName() + " Hello " + argument;
-
-            case "NOOP":
-                return "250 OK";
-
-            case "QUIT":
-                isQuit = true;
-                return "221 " + getHostName() + " closing connection";
-
-            case "RSET":
-                // Reset all state variables to initial values
-                resetState();
-                // Keep HELO state as per RFC 5321
-                isHeloReceived = true;
-                return "250 OK";
-
-            default:
-                return isUnsupportedCommand(command) ? "502 Command not implemented" : "500 Command not recognized";
+    private void shutdownInput() {
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            closeSocket();
         }
     }
 
-    private void handleData(String inputLine) {
+    private void closeSocket() {
         try {
-            // Check for end-of-data indicator
-            if (".".equals(inputLine)) {
-                if (messageData.isEmpty()) {
-                    resetState();
-                    return;
-                }
-
-                // Attempt to create mailboxes for all valid recipients
-                List<Mailbox> recipientMailboxes = new ArrayList<>();
-                for (String recipient : recipients) {
-                    try {
-                        recipientMailboxes.add(new Mailbox(recipient));
-                    } catch (Mailbox.InvalidUserException e) {
-                        System.err.println("Invalid recipient: " + recipient + " -> " + e.getMessage());
-                        socketOut.println("451 Requested action aborted: invalid recipient");
-                        resetState(); // reset state even on error
-                        return;
-                    }
-                }
-
-                // Attempt to write message to mailboxes
-                try (MailWriter writer = new MailWriter(recipientMailboxes)) {
-                    writer.write(messageData.toString());
-                    writer.flush();
-                } catch (IOException e) {
-                    System.err.println("Failed to write to mailboxes: " + e.getMessage());
-                    socketOut.println("451 Requested action aborted: error writing to mailboxes");
-                    resetState(); // reset state even on error
-                    return;
-                }
-
-                // Successfully delivered
-                socketOut.println("250 OK");
-                resetState();
-            } else {
-                // Dot-stuffing: if line starts with two dots, reduce to one
-                if (inputLine.startsWith("..")) {
-                    inputLine = inputLine.substring(1);
-                }
-
-                // Accumulate the input line into message data buffer
-                messageData.append(inputLine).append("\r\n");
-            }
-
-        } catch (Exception e) {
-            System.err.println("Unexpected error in handleData: " + e.getMessage());
-            socketOut.println("451 Requested action aborted: internal error");
-            resetState();
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do
         }
     }
 
-    private String extractEmailAddress(String argument) {
-        if (argument == null) return null;
-
-        argument = argument.replaceAll("^(?i)(MAIL FROM:|RCPT TO:)\\s*", "");
-
-        if (argument.startsWith("<") && argument.endsWith(">")) {
-            argument = argument.substring(1, argument.length() - 1).trim();
-        }
-
-        if (!EMAIL_PATTERN.matcher(argument).matches()) {
-            return null;
-        }
-
-        return argument;
+    private void sendResponse(byte[] response) throws IOException {
+        socketOut.write(response);
     }
 
-    private void resetState() {
-        sender = null;
-        recipients.clear();
-        messageData = new StringBuilder();
-        waitingForData = false;
-        messageData.setLength(0);
+    /**
+     * Rejects a connection that cannot be served because the server is at its session limit. Sends a single 421 reply
+     * and closes the socket without reading anything from the client.
+     *
+     * @param socket The socket associated to the rejected connection.
+     */
+    static void rejectBusy(Socket socket) {
+        ServerMetrics.SMTP.rejected.increment();
+        reject(socket, ServerIdentity.get().busy());
     }
 
     /**
-     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
-     * @return A string corresponding to the name of the current host.
+     * Rejects a connection refused by {@link AdmissionControl}, in the same way as <code>rejectBusy()</code>.
+     *
+     * @param socket The socket associated to the rejected connection.
      */
-    private static String getHostName() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
-                return reader.readLine();
-            } catch (IOException ex) {
-                return "unknown_host";
-            }
+    static void rejectThrottled(Socket socket) {
+        ServerMetrics.SMTP.rejected.increment();
+        reject(socket, ServerIdentity.get().throttled());
+    }
+
+    private static void reject(Socket socket, byte[] reply) {
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(reply);
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone already, nothing else to do
         }
     }
 
     /**
      * Main process for the SMTP server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client. Sessions run in a virtual thread per connection by default; see {@link ConnectionDispatcher} for the
+     * <code>mail.smtp.executor</code> and <code>mail.smtp.maxSessions</code> system properties. If the system property
+     * <code>mail.smtp.io</code> is set to <code>nio</code>, connections are served by a {@link NioSMTPServer} instead,
+     * which only honours <code>mail.smtp.maxSessions</code>.
+     * Connections are checked against the per-client limits described in {@link AdmissionControl} as soon as they are
+     * accepted. Metrics are exposed as described in {@link Metrics}. If asynchronous delivery is enabled (see
+     * {@link DeliveryQueue}), messages left in the queue by a previous run are queued again on startup.
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or accepting new connections.
@@ -354,20 +171,39 @@ public class MySMTPServer extends Thread {
             throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        Metrics.start();
+        ServerIdentity.start();
+        if (DeliveryQueue.ENABLED) {
+            // Messages left in the queue by a previous run are delivered without waiting for a new message
+            DeliveryQueue.getInstance();
+        }
+
+        if ("nio".equalsIgnoreCase(System.getProperty("mail.smtp.io"))) {
+            int ioThreads = Integer.getInteger("mail.smtp.ioThreads", Runtime.getRuntime().availableProcessors());
+            int maxSessions = Integer.getInteger("mail.smtp.maxSessions", 0);
+            new NioSMTPServer(Integer.parseInt(args[0]), ioThreads, maxSessions).run();
+            return;
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]));
+             ConnectionDispatcher dispatcher = ConnectionDispatcher.fromSystemProperties("mail.smtp", "smtp-session-")) {
             serverSocket.setReuseAddress(true);
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
+            Log.info("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
             //noinspection InfiniteLoopStatement
             while (true) {
                 Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
-                try {
-                    MySMTPServer handler = new MySMTPServer(socket);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
+                ServerMetrics.SMTP.accepted.increment();
+                if (Log.isEnabled(Log.Level.DEBUG))
+                    Log.debug("Accepted a connection from " + socket.getRemoteSocketAddress());
+                AdmissionControl.Client client = AdmissionControl.smtp().admit(socket.getInetAddress());
+                if (client == null) {
+                    rejectThrottled(socket);
+                    continue;
                 }
+                dispatcher.dispatch(socket, accepted -> new MySMTPServer(accepted, client), rejected -> {
+                    client.release();
+                    rejectBusy(rejected);
+                });
             }
         }
     }
@@ -0,0 +1,352 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.log.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Event-driven front end for the SMTP server. Instead of dedicating a thread to each connection, a small fixed set of
+ * I/O threads multiplexes all connections with a {@link Selector}. Each connection keeps its own {@link SmtpSession},
+ * which is advanced as bytes arrive, so idle and slow clients cost a few buffers rather than a blocked thread.
+ * Responses are coalesced per read, which gives PIPELINING clients a single write for a whole batch of commands.
+ * Delivering a message may block, e.g., on mailbox locks or while waiting for its files to be forced to disk (see
+ * <code>mail.durability</code>), so it never runs on an I/O thread: at the end of a message the connection stops
+ * reading, the delivery runs in a virtual thread, and its reply is handed back to the I/O thread, which then resumes
+ * with any commands pipelined after the message. Connections that time out (see {@link SmtpTimeouts}) are handed back
+ * to their I/O thread, which sends a 421 reply and closes them. As with the blocking front end, an optional limit on
+ * the number of concurrent sessions may be configured, in which case connections above the limit receive a 421 reply
+ * and are closed immediately.
+ */
+public class NioSMTPServer implements Runnable {
+
+    private static final int OUTPUT_BUFFER_SIZE = 512;
+    private static final ExecutorService DELIVERY =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("smtp-delivery-", 0).factory());
+
+    private final int port;
+    private final IoLoop[] loops;
+    private final Semaphore sessionPermits;
+
+    /**
+     * Creates a new server that will listen on the specified port once started.
+     *
+     * @param port        The listening port.
+     * @param ioThreads   The number of I/O threads (and selectors) used to serve connections.
+     * @param maxSessions The maximum number of concurrent sessions, or zero or less for no limit.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioSMTPServer(int port, int ioThreads, int maxSessions) throws IOException {
+        this.port = port;
+        this.sessionPermits = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new IoLoop(Selector.open(), sessionPermits);
+    }
+
+    /**
+     * Starts the I/O threads and repeatedly accepts new connections, assigning each one to an I/O thread in a
+     * round-robin fashion. Only returns if the listening socket fails.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++)
+            Thread.ofPlatform().name("smtp-io-" + i).start(loops[i]);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Waiting for connections on port " + port + " (" + loops.length + " I/O threads)...");
+            int next = 0;
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                ServerMetrics.SMTP.accepted.increment();
+                if (Log.isEnabled(Log.Level.DEBUG))
+                    Log.debug("Accepted a connection from " + channel.getRemoteAddress());
+                AdmissionControl.Client client = AdmissionControl.smtp().admit(channel.socket().getInetAddress());
+                // The channel is still in blocking mode, so it can be rejected in the same way as by the blocking server
+                if (client == null) {
+                    MySMTPServer.rejectThrottled(channel.socket());
+                    continue;
+                }
+                if (sessionPermits != null && !sessionPermits.tryAcquire()) {
+                    client.release();
+                    MySMTPServer.rejectBusy(channel.socket());
+                    continue;
+                }
+                loops[next].register(channel, client);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            Log.error("Error accepting connections.", e);
+        } finally {
+            for (IoLoop loop : loops)
+                loop.close();
+        }
+    }
+
+    /**
+     * A single I/O thread, serving all connections registered with its selector.
+     */
+    private static class IoLoop implements Runnable {
+
+        private final Selector selector;
+        private final Semaphore sessionPermits;
+        private final Queue<Connection> newConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> timedOut = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> delivered = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector, Semaphore sessionPermits) {
+            this.selector = selector;
+            this.sessionPermits = sessionPermits;
+        }
+
+        void register(SocketChannel channel, AdmissionControl.Client client) {
+            newConnections.add(new Connection(this, channel, client));
+            selector.wakeup();
+        }
+
+        /**
+         * Hands a connection that timed out over to this I/O thread. Called from the timer wheel thread.
+         */
+        void timedOut(Connection connection) {
+            timedOut.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Delivers the message a connection has finished receiving, outside of this I/O thread. Once it is delivered,
+         * the connection is handed back to this I/O thread with the reply to be sent.
+         */
+        void deliver(Connection connection) {
+            DELIVERY.execute(() -> {
+                connection.deliveryResponse = connection.session.endOfData();
+                delivered.add(connection);
+                selector.wakeup();
+            });
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Connection added;
+                    while ((added = newConnections.poll()) != null)
+                        accept(added);
+                    Connection expired;
+                    while ((expired = timedOut.poll()) != null)
+                        expired.timeOut();
+                    Connection completed;
+                    while ((completed = delivered.poll()) != null) {
+                        try {
+                            completed.delivered();
+                        } catch (IOException e) {
+                            Log.warn("Error in client's connection handling.", e);
+                            completed.close();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                            if (key.isValid() && key.isReadable())
+                                connection.read();
+                        } catch (IOException e) {
+                            Log.warn("Error in client's connection handling.", e);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Server is shutting down
+            } catch (IOException e) {
+                Log.error("Error in I/O loop.", e);
+            }
+        }
+
+        private void accept(Connection connection) {
+            try {
+                connection.channel.configureBlocking(false);
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.timeouts.start();
+                connection.send(connection.session.greeting());
+                connection.write();
+            } catch (IOException e) {
+                Log.warn("Error setting up an individual client's handler.", e);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Per-connection state: the protocol session, the input not yet processed and the responses not yet written.
+     */
+    private static class Connection {
+
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SmtpSession session;
+        private final SmtpLineReader reader = new SmtpLineReader(true);
+        private final SmtpTimeouts timeouts;
+        private ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        private boolean closeAfterWrite = false;
+        private boolean closed = false;
+        private SelectionKey key;
+        // Set by the delivery thread, and read by the I/O thread once the connection is handed back
+        private byte[] deliveryResponse;
+
+        Connection(IoLoop loop, SocketChannel channel, AdmissionControl.Client client) {
+            this.loop = loop;
+            this.timeouts = new SmtpTimeouts(() -> loop.timedOut(this), () -> loop.timedOut(this));
+            this.channel = channel;
+            this.session = new SmtpSession(client);
+            ServerMetrics.SMTP.activeSessions.increment();
+        }
+
+        void read() throws IOException {
+            int count = channel.read(reader.buffer());
+            if (count < 0) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        /**
+         * Sends the reply to a message delivered outside of the I/O thread, and resumes processing the input received
+         * after it, if the connection is still open.
+         */
+        void delivered() throws IOException {
+            reader.deliveryCompleted();
+            if (closed) {
+                // The session was left open while the message was being delivered
+                session.close();
+                return;
+            }
+            send(deliveryResponse);
+            deliveryResponse = null;
+            processInput();
+        }
+
+        private void processInput() throws IOException {
+            reader.process(session, this::send);
+            // Once handed to the delivery thread, the session must not be used here until it is handed back, so its
+            // timeout is armed again in delivered()
+            if (reader.isDeliveryPending())
+                loop.deliver(this);
+            else
+                timeouts.afterInput(session);
+            if (session.isQuit())
+                closeAfterWrite = true;
+            write();
+        }
+
+        /**
+         * Appends a response to the output buffer. Responses are only written to the socket once all bytes received so
+         * far have been processed, so the responses to a pipelined batch of commands go out in a single write.
+         */
+        void send(byte[] response) {
+            reserve(response.length);
+            output.put(response);
+        }
+
+        private void reserve(int length) {
+            if (output.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+                output.flip();
+                larger.put(output);
+                output = larger;
+            }
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts. While output is pending the connection stops reading,
+         * so a client that does not read its responses cannot make the server buffer an unbounded amount of data. It
+         * also stops reading while a message is being delivered.
+         */
+        void write() throws IOException {
+            if (output.position() > 0) {
+                output.flip();
+                channel.write(output);
+                output.compact();
+                if (output.position() > 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            key.interestOps(reader.isDeliveryPending() ? 0 : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Ends a connection that timed out: the first time, sends the timeout reply and closes the connection once it
+         * is written; the second time, i.e., if the reply could not be written within the grace period, closes it.
+         */
+        void timeOut() {
+            if (closed)
+                return;
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            closeAfterWrite = true;
+            send(ServerIdentity.get().timedOut());
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            timeouts.cancel();
+            ServerMetrics.SMTP.activeSessions.decrement();
+            // A message being delivered still uses the session, which is closed once the delivery completes
+            if (!reader.isDeliveryPending())
+                session.close();
+            if (loop.sessionPermits != null)
+                loop.sessionPermits.release();
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+}
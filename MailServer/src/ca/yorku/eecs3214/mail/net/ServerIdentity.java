@@ -0,0 +1,213 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.log.Log;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Name under which the server identifies itself, and the replies that include it. The name is taken from the
+ * <code>mail.hostname</code> system property or, if it is not set, resolved once from the local host. The replies that
+ * do not depend on the client are built once, already encoded, so accepting a connection does no name resolution and
+ * sending the banner is a single buffer copy. The HELO and EHLO replies only encode the client's name.
+ * <p>
+ * The identity is immutable; <code>refresh()</code> resolves the name again and replaces the current identity, e.g.,
+ * after the host is renamed. Once <code>start()</code> is called, the name is exposed over JMX as the
+ * <code>HostName</code> attribute of the MBean <code>ca.yorku.eecs3214.mail:type=ServerIdentity</code>, and its
+ * <code>refresh</code> operation calls <code>refresh()</code>.
+ */
+final class ServerIdentity {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static volatile ServerIdentity current = new ServerIdentity(resolveHostName());
+    private static boolean started = false;
+
+    private final String hostName;
+    private final byte[] greeting;
+    private final byte[] busy;
+    private final byte[] throttled;
+    private final byte[] timedOut;
+    private final byte[] quit;
+    private final byte[] popSignOff;
+    private final byte[] heloPrefix;
+    private final byte[] ehloPrefix;
+    private final byte[] ehloExtensions;
+
+    private ServerIdentity(String hostName) {
+        this.hostName = hostName;
+        this.greeting = encode("220 " + hostName + " SMTP server ready");
+        this.busy = encode("421 " + hostName + " Too many connections, try again later");
+        this.throttled = encode("421 " + hostName + " Too many connections from your address, try again later");
+        this.timedOut = encode("421 " + hostName + " Timeout exceeded, closing connection");
+        this.quit = encode("221 " + hostName + " closing connection");
+        this.popSignOff = encode("+OK " + hostName + " POP3 server signing off");
+        this.heloPrefix = ("250 " + hostName + " Hello ").getBytes(StandardCharsets.UTF_8);
+        this.ehloPrefix = ("250-" + hostName + " Hello ").getBytes(StandardCharsets.UTF_8);
+        StringBuilder extensions = new StringBuilder();
+        for (int i = 0; i < SmtpSession.EXTENSIONS.length; i++) {
+            extensions.append(i == SmtpSession.EXTENSIONS.length - 1 ? "\r\n250 " : "\r\n250-").append(SmtpSession.EXTENSIONS[i]);
+        }
+        this.ehloExtensions = encode(extensions.toString());
+    }
+
+    /**
+     * Returns the current identity of the server.
+     *
+     * @return The server identity.
+     */
+    static ServerIdentity get() {
+        return current;
+    }
+
+    /**
+     * Determines the host name again and replaces the current identity.
+     *
+     * @return The new server identity.
+     */
+    static ServerIdentity refresh() {
+        current = new ServerIdentity(resolveHostName());
+        return current;
+    }
+
+    /**
+     * Exposes the identity over JMX. Calling this method more than once has no further effect.
+     */
+    static synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new IdentityBean(),
+                    new ObjectName("ca.yorku.eecs3214.mail:type=ServerIdentity"));
+        } catch (JMException e) {
+            Log.warn("Server identity will not be available over JMX: " + e.getMessage());
+        }
+    }
+
+    private static String resolveHostName() {
+        String configured = System.getProperty("mail.hostname");
+        if (configured != null && !configured.isBlank())
+            return configured.trim();
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
+                String name = reader.readLine();
+                return name == null || name.isBlank() ? "unknown_host" : name.trim();
+            } catch (IOException ex) {
+                return "unknown_host";
+            }
+        }
+    }
+
+    private static byte[] encode(String reply) {
+        return (reply + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the name under which the server identifies itself.
+     */
+    String hostName() {
+        return hostName;
+    }
+
+    /**
+     * Returns the SMTP greeting (220) reply, including its line terminator. The array must not be modified.
+     */
+    byte[] greeting() {
+        return greeting;
+    }
+
+    /**
+     * Returns the reply (421) sent to connections rejected because the server is busy, including its line terminator.
+     * The array must not be modified.
+     */
+    byte[] busy() {
+        return busy;
+    }
+
+    /**
+     * Returns the reply (421) sent to connections refused by {@link AdmissionControl}, including its line terminator.
+     * The array must not be modified.
+     */
+    byte[] throttled() {
+        return throttled;
+    }
+
+    /**
+     * Returns the reply (421) sent before closing a session that timed out, including its line terminator. The array
+     * must not be modified.
+     */
+    byte[] timedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Returns the reply (221) to the SMTP QUIT command, including its line terminator. The array must not be modified.
+     */
+    byte[] quitReply() {
+        return quit;
+    }
+
+    /**
+     * Returns the reply to the POP3 QUIT command, including its line terminator. The array must not be modified.
+     */
+    byte[] popSignOffReply() {
+        return popSignOff;
+    }
+
+    /**
+     * Returns the encoded HELO reply, including its line terminator.
+     */
+    byte[] heloReply(String clientName) {
+        return withClientName(heloPrefix, clientName, CRLF);
+    }
+
+    /**
+     * Returns the encoded multiline EHLO reply, listing the supported service extensions, including its final line
+     * terminator.
+     */
+    byte[] ehloReply(String clientName) {
+        return withClientName(ehloPrefix, clientName, ehloExtensions);
+    }
+
+    private static byte[] withClientName(byte[] prefix, String clientName, byte[] suffix) {
+        byte[] name = clientName.getBytes(StandardCharsets.UTF_8);
+        byte[] reply = new byte[prefix.length + name.length + suffix.length];
+        System.arraycopy(prefix, 0, reply, 0, prefix.length);
+        System.arraycopy(name, 0, reply, prefix.length, name.length);
+        System.arraycopy(suffix, 0, reply, prefix.length + name.length, suffix.length);
+        return reply;
+    }
+
+    /**
+     * Management interface of the server identity, as exposed over JMX.
+     */
+    public interface ServerIdentityMXBean {
+        String getHostName();
+
+        void refresh();
+    }
+
+    private static class IdentityBean implements ServerIdentityMXBean {
+        @Override
+        public String getHostName() {
+            return get().hostName();
+        }
+
+        @Override
+        public void refresh() {
+            String previous = get().hostName();
+            String hostName = ServerIdentity.refresh().hostName();
+            if (!hostName.equals(previous))
+                Log.info("Server host name changed from " + previous + " to " + hostName);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Counter;
+import ca.yorku.eecs3214.mail.metrics.Gauge;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+/**
+ * Connection metrics of one of the servers, labelled with its protocol.
+ */
+final class ServerMetrics {
+
+    static final ServerMetrics SMTP = new ServerMetrics("smtp");
+    static final ServerMetrics POP = new ServerMetrics("pop3");
+
+    final Counter accepted;
+    final Counter rejected;
+    final Gauge activeSessions;
+    private final String labels;
+
+    private ServerMetrics(String protocol) {
+        labels = "protocol=\"" + protocol + "\"";
+        accepted = Metrics.counter("mail_connections_accepted_total", labels, "Connections accepted.");
+        rejected = Metrics.counter("mail_connections_rejected_total", labels, "Connections rejected because the server was busy or the client exceeded its limits.");
+        activeSessions = Metrics.gauge("mail_sessions_active", labels, "Sessions currently open.");
+    }
+
+    /**
+     * Creates the counter of sessions closed because they timed out in a phase of the protocol. Must be called once
+     * per phase.
+     *
+     * @param phase The phase, e.g., <code>command</code>.
+     * @return The new counter.
+     */
+    Counter timeouts(String phase) {
+        return Metrics.counter("mail_sessions_timed_out_total", labels + ",phase=\"" + phase + "\"",
+                "Sessions closed because the client was idle or too slow, by protocol phase.");
+    }
+}
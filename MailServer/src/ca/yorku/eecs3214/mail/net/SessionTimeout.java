@@ -0,0 +1,71 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Counter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout of a client session, kept in the shared {@link TimerWheel}. The session arms it for each phase of the
+ * protocol, along with the counter of sessions that time out in that phase. When it expires, the session is first asked
+ * to end through the expire action, which typically shuts down the input of the connection, so that the thread serving
+ * it reads the end of the stream, replies and closes the connection; if the session is still open 10 seconds later,
+ * e.g., because the client does not read its replies, the abort action closes the connection outright.
+ */
+final class SessionTimeout {
+
+    private static final long GRACE = TimeUnit.SECONDS.toNanos(10);
+
+    private final TimerWheel.Timeout timeout;
+    private final Runnable expire;
+    private final Runnable abort;
+    private volatile Counter phase;
+    private volatile boolean expired = false;
+
+    /**
+     * @param expire Asks the session to end. Runs on the wheel thread, so it must not block.
+     * @param abort  Closes the connection. Runs on the wheel thread, so it must not block.
+     */
+    SessionTimeout(Runnable expire, Runnable abort) {
+        this.timeout = TimerWheel.get().newTimeout(this::fire);
+        this.expire = expire;
+        this.abort = abort;
+    }
+
+    /**
+     * Arms the timeout for a phase of the protocol. Has no effect once the timeout has expired.
+     *
+     * @param deadline The time at which the phase times out, as returned by <code>System.nanoTime()</code>.
+     * @param phase    Counts the sessions timing out in this phase.
+     */
+    void armAt(long deadline, Counter phase) {
+        if (expired)
+            return;
+        this.phase = phase;
+        timeout.expireAt(deadline);
+    }
+
+    /**
+     * Returns true if the timeout expired, in which case the session should end as soon as possible.
+     */
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Disarms the timeout. Must be called once the session has ended.
+     */
+    void cancel() {
+        timeout.cancel();
+    }
+
+    private void fire() {
+        if (expired) {
+            abort.run();
+            return;
+        }
+        expired = true;
+        phase.increment();
+        timeout.expireAfter(GRACE);
+        expire.run();
+    }
+}
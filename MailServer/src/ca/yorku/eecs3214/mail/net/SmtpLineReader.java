@@ -0,0 +1,205 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received from an SMTP client into command lines and message content. Bytes are read by the
+ * transport into a single reusable buffer. Command lines are decoded into strings, but message content is never
+ * decoded: the bytes of each line are passed to the session straight from the buffer, with the leading dot of
+ * dot-stuffed lines skipped in place and the terminating <code>CRLF.CRLF</code> sequence detected along the way. This
+ * keeps 8-bit content intact and avoids allocating anything per line of message content. Only CRLF ends a line of
+ * message content: a bare LF or CR is kept as content, so <code>LF.LF</code> and similar sequences, which other servers
+ * may treat as the end of the data, can never end a message here and smuggle a second one in its content.
+ * <p>
+ * Command lines longer than <code>mail.smtp.maxCommandLength</code> bytes (default 512, including the line terminator,
+ * as in RFC 5321) are discarded as soon as they exceed it. Lines of message content are never buffered, so their length
+ * needs no limit.
+ * <p>
+ * A transport that must not block, such as {@link NioSMTPServer}, can have the reader stop at the end of each message
+ * instead of completing it, so that the delivery can run elsewhere; see <code>isDeliveryPending()</code>.
+ */
+class SmtpLineReader {
+
+    static final int BUFFER_SIZE = 8192;
+    static final int MAX_COMMAND_LENGTH = Math.max(16, Math.min(BUFFER_SIZE, Integer.getInteger("mail.smtp.maxCommandLength", 512)));
+
+    // States of the message content scanner, relative to the start of the current line
+    private static final int LINE_START = 0;
+    private static final int AFTER_DOT = 1;
+    private static final int AFTER_DOT_CR = 2;
+    private static final int IN_LINE = 3;
+    private static final int AFTER_CR = 4;
+
+    private static final byte[] LINE_TOO_LONG = SmtpSession.reply("500 Line too long");
+
+    private final ByteBuffer buffer;
+    private final boolean deferDelivery;
+    private int dataState = LINE_START;
+    private boolean discardingLine = false;
+    private boolean deliveryPending = false;
+
+    SmtpLineReader() {
+        this(false);
+    }
+
+    /**
+     * @param deferDelivery If true, the session's <code>endOfData()</code> is not called when the end of a message is
+     *                      found; processing stops there instead, until <code>deliveryCompleted()</code> is called.
+     */
+    SmtpLineReader(boolean deferDelivery) {
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.deferDelivery = deferDelivery;
+    }
+
+    /**
+     * Returns the buffer into which the transport should read bytes received from the client. The buffer is always
+     * left ready for writing (i.e., for a <code>read</code> operation).
+     *
+     * @return The input buffer.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Processes all complete command lines and all message content currently in the buffer, passing them to the
+     * session. Incomplete command lines are kept in the buffer until the rest of the line arrives. Processing stops
+     * once the session is terminated by a QUIT command, or at the end of a message if delivery is deferred.
+     *
+     * @param session   The session the input belongs to.
+     * @param responses Receives the responses produced by the session.
+     * @throws IOException If the session or the response sink fails.
+     */
+    void process(SmtpSession session, ResponseSink responses) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining() && !session.isQuit() && !deliveryPending) {
+            int position = buffer.position();
+            byte[] response = session.isReceivingData() ? scanData(session) : scanCommand(session);
+            if (response != null)
+                responses.send(response);
+            if (position == buffer.position())
+                break;
+        }
+        buffer.compact();
+    }
+
+    private byte[] scanCommand(SmtpSession session) {
+        byte[] array = buffer.array();
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int searchLimit = Math.min(limit, start + MAX_COMMAND_LENGTH);
+        int lineFeed = start;
+        while (lineFeed < searchLimit && array[lineFeed] != '\n')
+            lineFeed++;
+
+        if (lineFeed == searchLimit) {
+            // No complete line yet. If the line is already too long, drop what was received of it.
+            if (searchLimit - start == MAX_COMMAND_LENGTH) {
+                buffer.position(searchLimit);
+                if (!discardingLine) {
+                    discardingLine = true;
+                    return LINE_TOO_LONG;
+                }
+            }
+            return null;
+        }
+
+        buffer.position(lineFeed + 1);
+        if (discardingLine) {
+            discardingLine = false;
+            return null;
+        }
+        int end = lineFeed > start && array[lineFeed - 1] == '\r' ? lineFeed - 1 : lineFeed;
+        return session.processLine(new String(array, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    private byte[] scanData(SmtpSession session) throws IOException {
+        byte[] array = buffer.array();
+        int chunkStart = buffer.position();
+        int limit = buffer.limit();
+        for (int i = chunkStart; i < limit; i++) {
+            byte b = array[i];
+            switch (dataState) {
+                case LINE_START:
+                    if (b == '.') {
+                        // Skip the leading dot: either the line is dot-stuffed or this is the end of the data
+                        session.data(array, chunkStart, i - chunkStart);
+                        chunkStart = i + 1;
+                        dataState = AFTER_DOT;
+                    } else {
+                        dataState = b == '\r' ? AFTER_CR : IN_LINE;
+                    }
+                    break;
+                case AFTER_DOT:
+                    dataState = b == '\r' ? AFTER_DOT_CR : IN_LINE;
+                    break;
+                case AFTER_DOT_CR:
+                    if (b == '\n')
+                        return endOfData(session, i);
+                    dataState = b == '\r' ? AFTER_CR : IN_LINE;
+                    break;
+                case AFTER_CR:
+                    if (b == '\n')
+                        dataState = LINE_START;
+                    else if (b != '\r')
+                        dataState = IN_LINE;
+                    break;
+                default:
+                    if (b == '\r')
+                        dataState = AFTER_CR;
+            }
+        }
+
+        if (dataState == AFTER_DOT_CR) {
+            // Keep the CR of ".\r" in the buffer until the next byte tells whether this is the end of the data
+            session.data(array, chunkStart, limit - 1 - chunkStart);
+            buffer.position(limit - 1);
+            dataState = AFTER_DOT;
+        } else {
+            session.data(array, chunkStart, limit - chunkStart);
+            buffer.position(limit);
+        }
+        return null;
+    }
+
+    private byte[] endOfData(SmtpSession session, int lineFeed) {
+        buffer.position(lineFeed + 1);
+        dataState = LINE_START;
+        if (deferDelivery) {
+            deliveryPending = true;
+            return null;
+        }
+        return session.endOfData();
+    }
+
+    /**
+     * Returns true if processing stopped at the end of a message whose delivery is deferred. The transport must then
+     * call the session's <code>endOfData()</code>, send its response and call <code>deliveryCompleted()</code> before
+     * processing any further input.
+     *
+     * @return true if a message is waiting to be delivered, and false otherwise.
+     */
+    boolean isDeliveryPending() {
+        return deliveryPending;
+    }
+
+    /**
+     * Resumes processing after the delivery of a message, see <code>isDeliveryPending()</code>.
+     */
+    void deliveryCompleted() {
+        deliveryPending = false;
+    }
+
+    /**
+     * Receives the responses produced while processing input.
+     */
+    @FunctionalInterface
+    interface ResponseSink {
+        /**
+         * Sends a response, already encoded and including its line terminator. The array must not be modified.
+         */
+        void send(byte[] response) throws IOException;
+    }
+}
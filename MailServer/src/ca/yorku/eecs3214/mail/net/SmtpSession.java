@@ -0,0 +1,663 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.log.Log;
+import ca.yorku.eecs3214.mail.mailbox.DeliveryQueue;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.mailbox.MessageSpool;
+import ca.yorku.eecs3214.mail.metrics.Counter;
+import ca.yorku.eecs3214.mail.metrics.Histogram;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Protocol state of an individual SMTP conversation. The session is independent of how bytes are read from and
+ * written to the client: a transport feeds it commands one line at a time, and message content as raw bytes, and sends
+ * back whatever response is returned, so the same state machine drives both the thread-per-connection server and the
+ * selector-based server. See {@link SmtpLineReader} for the framing of the input. Commands are checked against the
+ * limits of the client the session was admitted as, see {@link AdmissionControl}.
+ */
+class SmtpSession {
+
+    /**
+     * State of the conversation with the client.
+     */
+    private enum State {
+        /** No HELO or EHLO command received yet. */
+        CONNECTED,
+        /** Greeted, no mail transaction in progress. */
+        READY,
+        /** MAIL command accepted, no recipients yet. */
+        MAIL,
+        /** At least one RCPT command accepted. */
+        RECIPIENTS,
+        /** DATA command accepted, message content is being received. */
+        DATA,
+        /** QUIT command received. */
+        QUIT
+    }
+
+    /**
+     * Commands recognized by the server. Each command is associated with the method that handles it, and with whether
+     * the client must have sent HELO or EHLO before using it. Command lines are dispatched by looking up their verb in
+     * a table indexed by the verb's first letter, comparing characters in place, so no string is created for the verb.
+     * The time taken to handle each command is recorded per verb.
+     */
+    private enum Command {
+        HELO(false, SmtpSession::handleHelo),
+        EHLO(false, SmtpSession::handleEhlo),
+        MAIL(true, SmtpSession::handleMail),
+        RCPT(true, SmtpSession::handleRcpt),
+        DATA(true, SmtpSession::handleData),
+        RSET(false, SmtpSession::handleRset),
+        NOOP(false, (session, line, position) -> OK),
+        QUIT(false, SmtpSession::handleQuit),
+        VRFY(false, SmtpSession::handleVrfy),
+        // Known SMTP commands that are not supported
+        EXPN(true, Command::notImplemented),
+        HELP(true, Command::notImplemented),
+        AUTH(true, Command::notImplemented),
+        STARTTLS(true, Command::notImplemented),
+        TURN(true, Command::notImplemented),
+        SOML(true, Command::notImplemented),
+        SEND(true, Command::notImplemented),
+        SAML(true, Command::notImplemented);
+
+        private static final Command[][] BY_INITIAL = new Command[26][];
+
+        static {
+            for (Command command : values()) {
+                int initial = command.name().charAt(0) - 'A';
+                Command[] current = BY_INITIAL[initial] == null ? new Command[0] : BY_INITIAL[initial];
+                Command[] extended = Arrays.copyOf(current, current.length + 1);
+                extended[current.length] = command;
+                BY_INITIAL[initial] = extended;
+            }
+        }
+
+        private final boolean requiresGreeting;
+        private final Handler handler;
+        private final Histogram latency = Metrics.histogram("mail_smtp_command_duration_seconds",
+                "verb=\"" + name() + "\"", "Time taken to handle SMTP commands, by verb.", 1e-9);
+
+        Command(boolean requiresGreeting, Handler handler) {
+            this.requiresGreeting = requiresGreeting;
+            this.handler = handler;
+        }
+
+        /**
+         * Returns the command whose verb is found, in any case, in the specified range of a line.
+         */
+        static Command lookup(String line, int start, int end) {
+            if (start == end) {
+                return null;
+            }
+            int initial = (line.charAt(start) | 0x20) - 'a';
+            if (initial < 0 || initial >= BY_INITIAL.length || BY_INITIAL[initial] == null) {
+                return null;
+            }
+            for (Command command : BY_INITIAL[initial]) {
+                if (matchesKeyword(line, start, end, command.name())) {
+                    return command;
+                }
+            }
+            return null;
+        }
+
+        private static byte[] notImplemented(SmtpSession session, String line, int position) {
+            return NOT_IMPLEMENTED;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * Handles a command line.
+         *
+         * @param session  The session the command belongs to.
+         * @param line     The command line.
+         * @param position The position in the line where the command's arguments start.
+         * @return The encoded response to the command, including its line terminator.
+         */
+        byte[] handle(SmtpSession session, String line, int position);
+    }
+
+    private static final byte[] SYNTAX_ERROR = reply("500 Syntax error, command unrecognized");
+    private static final byte[] PARAMETER_ERROR = reply("501 Syntax error in parameters or arguments");
+    private static final byte[] SEQUENCE_ERROR = reply("503 Bad sequence of commands");
+    private static final byte[] SIZE_EXCEEDED = reply("552 Message size exceeds fixed maximum message size");
+    private static final byte[] RATE_EXCEEDED =
+            reply("451 Requested action aborted: sending rate exceeded, try again later");
+    private static final byte[] TOO_MANY_RECIPIENTS = reply("452 Too many recipients");
+    private static final byte[] OK = reply("250 OK");
+    private static final byte[] NOT_IMPLEMENTED = reply("502 Command not implemented");
+    private static final byte[] UNRECOGNIZED = reply("500 Command not recognized");
+    private static final byte[] HELO_SYNTAX_ERROR = reply("501 Syntax: HELO/EHLO hostname");
+    private static final byte[] UNKNOWN_PARAMETER =
+            reply("555 MAIL FROM/RCPT TO parameters not recognized or not implemented");
+    private static final byte[] NEED_MAIL_BEFORE_RCPT = reply("503 Need MAIL before RCPT");
+    private static final byte[] NO_SUCH_USER = reply("550 No such user here");
+    private static final byte[] NEED_MAIL_BEFORE_DATA = reply("503 Need MAIL before DATA");
+    private static final byte[] NEED_RCPT_BEFORE_DATA = reply("503 Need RCPT before DATA");
+    private static final byte[] LOCAL_ERROR = reply("451 Requested action aborted: local error in processing");
+    private static final byte[] START_MAIL_INPUT = reply("354 Start mail input; end with <CRLF>.<CRLF>");
+    private static final byte[] VRFY_SYNTAX_ERROR = reply("501 Syntax: VRFY <address>");
+    private static final byte[] USER_NOT_FOUND = reply("550 User not found");
+    private static final byte[] INVALID_RECIPIENT = reply("451 Requested action aborted: invalid recipient");
+    private static final byte[] QUEUE_FULL =
+            reply("452 Requested action not taken: too many messages queued, try again later");
+    private static final byte[] WRITE_ERROR = reply("451 Requested action aborted: error writing to mailboxes");
+    private static final byte[] INTERNAL_ERROR = reply("451 Requested action aborted: internal error");
+    private static final byte[] EMPTY_MESSAGE = reply("554 Transaction failed: empty message");
+
+    private static final Counter UNRECOGNIZED_COMMANDS = Metrics.counter("mail_smtp_commands_unrecognized_total", "",
+            "SMTP command lines with an unknown verb.");
+    private static final Counter DATA_BYTES = Metrics.counter("mail_smtp_data_bytes_total", "",
+            "Bytes of message content received after DATA.");
+    private static final Counter MESSAGES_ACCEPTED = Metrics.counter("mail_smtp_messages_accepted_total", "",
+            "Messages accepted for delivery.");
+
+    private final AdmissionControl.Client client;
+    private State state = State.CONNECTED;
+    private String sender = null;
+    private final List<String> recipients = new ArrayList<>();
+    private MessageSpool spool = null;
+    private boolean dataFailed = false;
+    private long declaredSize = 0;
+    private long commandCount = 0;
+
+    // Largest message accepted, in bytes, as advertised by the SIZE extension (RFC 1870)
+    static final long MAX_MESSAGE_SIZE = Long.getLong("mail.smtp.maxMessageSize", 50L * 1024 * 1024);
+
+    // Service extensions advertised in the EHLO response
+    static final String[] EXTENSIONS = {"PIPELINING", "SIZE " + MAX_MESSAGE_SIZE, "8BITMIME"};
+
+    /**
+     * Creates a session that is not subject to any per-client limit.
+     */
+    SmtpSession() {
+        this(AdmissionControl.smtp().unlimited());
+    }
+
+    /**
+     * Creates a session for a connection admitted by {@link AdmissionControl}. The client is released when the
+     * session is closed.
+     *
+     * @param client The client the session is accounted to.
+     */
+    SmtpSession(AdmissionControl.Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Returns the welcome message to be sent as soon as the connection is established. The message is encoded once by
+     * {@link ServerIdentity}, and the returned array must not be modified.
+     *
+     * @return The encoded greeting line, including its line terminator.
+     */
+    byte[] greeting() {
+        return ServerIdentity.get().greeting();
+    }
+
+    /**
+     * Processes one command line received from the client. Empty lines are ignored.
+     *
+     * @param inputLine The line received from the client, without line terminator.
+     * @return The encoded response to be sent back to the client, including its line terminator, or null if the line
+     * does not produce a response. Multiline responses have their lines separated by CRLF. Fixed responses are encoded
+     * once, so the returned array must not be modified.
+     */
+    byte[] processLine(String inputLine) {
+        if (inputLine.isBlank()) {
+            return null;
+        }
+        commandCount++;
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace("Received: " + inputLine);
+        }
+
+        // Process SMTP commands
+        return handleCommand(inputLine);
+    }
+
+    /**
+     * Returns the number of command lines received so far, not counting empty lines.
+     *
+     * @return The number of command lines.
+     */
+    long commandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Returns true once the client has sent HELO or EHLO.
+     *
+     * @return true if the client has greeted the server, and false otherwise.
+     */
+    boolean isGreeted() {
+        return state != State.CONNECTED;
+    }
+
+    /**
+     * Returns true if a DATA command was accepted and the message content is being received, in which case input must
+     * be passed to <code>data()</code> and <code>endOfData()</code> instead of <code>processLine()</code>.
+     *
+     * @return true if message content is expected, and false if commands are expected.
+     */
+    boolean isReceivingData() {
+        return state == State.DATA;
+    }
+
+    /**
+     * Releases any resources held by the session, discarding a message that was only partially received. Must be
+     * called by the transport once the connection is closed.
+     */
+    void close() {
+        resetState();
+        client.release();
+    }
+
+    /**
+     * Returns true if the client issued the QUIT command, in which case the connection should be closed as soon as the
+     * response has been sent.
+     *
+     * @return true if the session is complete, and false otherwise.
+     */
+    boolean isQuit() {
+        return state == State.QUIT;
+    }
+
+    private byte[] handleCommand(String line) {
+        int start = skipSpaces(line, 0);
+        int end = start;
+        while (end < line.length() && !isSpace(line.charAt(end))) {
+            end++;
+        }
+        Command command = Command.lookup(line, start, end);
+        if (command == null) {
+            UNRECOGNIZED_COMMANDS.increment();
+            return state == State.CONNECTED ? SEQUENCE_ERROR : UNRECOGNIZED;
+        }
+        if (command.requiresGreeting && state == State.CONNECTED) {
+            return SEQUENCE_ERROR;
+        }
+        long startNanos = System.nanoTime();
+        byte[] response = command.handler.handle(this, line, skipSpaces(line, end));
+        command.latency.recordSince(startNanos);
+        return response;
+    }
+
+    private byte[] handleHelo(String line, int position) {
+        String argument = argument(line, position);
+        if (argument == null) {
+            return HELO_SYNTAX_ERROR;
+        }
+        greeted();
+        return ServerIdentity.get().heloReply(argument);
+    }
+
+    private byte[] handleEhlo(String line, int position) {
+        String argument = argument(line, position);
+        if (argument == null) {
+            return HELO_SYNTAX_ERROR;
+        }
+        greeted();
+        return ServerIdentity.get().ehloReply(argument);
+    }
+
+    private void greeted() {
+        // A HELO or EHLO command in the middle of a transaction aborts it, as with RSET (RFC 5321, section 4.1.4)
+        resetState();
+        state = State.READY;
+    }
+
+    private byte[] handleMail(String line, int position) {
+        if (!line.regionMatches(true, position, "FROM:", 0, 5)) {
+            return SYNTAX_ERROR;
+        }
+        int pathStart = skipSpaces(line, position + 5);
+        int pathEnd = pathStart < line.length() && line.charAt(pathStart) == '<' ? line.indexOf('>', pathStart) : -1;
+        if (pathEnd < 0 || pathEnd + 1 < line.length() && !isSpace(line.charAt(pathEnd + 1))) {
+            return SYNTAX_ERROR;
+        }
+
+        String fromAddress = parseAddress(line, pathStart + 1, pathEnd);
+        if (fromAddress == null) {
+            return PARAMETER_ERROR;
+        }
+        byte[] parameterError = checkMailParameters(line, pathEnd + 1);
+        if (parameterError != null) {
+            return parameterError;
+        }
+        if (!client.allowMessage(fromAddress, declaredSize)) {
+            return RATE_EXCEEDED;
+        }
+
+        recipients.clear();
+        sender = fromAddress;
+        state = State.MAIL;
+        return OK;
+    }
+
+    /**
+     * Checks the ESMTP parameters of a MAIL command: SIZE (RFC 1870) and BODY (RFC 6152).
+     *
+     * @return The error response for the first invalid parameter, or null if all parameters are valid.
+     */
+    private byte[] checkMailParameters(String line, int position) {
+        declaredSize = 0;
+        while ((position = skipSpaces(line, position)) < line.length()) {
+            int end = position;
+            while (end < line.length() && !isSpace(line.charAt(end))) {
+                end++;
+            }
+            int equals = line.indexOf('=', position);
+            if (equals < 0 || equals > end) {
+                equals = end;
+            }
+            if (matchesKeyword(line, position, equals, "SIZE")) {
+                long size = parseNumber(line, equals + 1, end);
+                if (size < 0) {
+                    return PARAMETER_ERROR;
+                }
+                if (size > MAX_MESSAGE_SIZE) {
+                    return SIZE_EXCEEDED;
+                }
+                declaredSize = size;
+            } else if (matchesKeyword(line, position, equals, "BODY")) {
+                if (!matchesKeyword(line, equals + 1, end, "7BIT") && !matchesKeyword(line, equals + 1, end, "8BITMIME")) {
+                    return PARAMETER_ERROR;
+                }
+            } else {
+                return UNKNOWN_PARAMETER;
+            }
+            position = end;
+        }
+        return null;
+    }
+
+    private byte[] handleRcpt(String line, int position) {
+        if (state != State.MAIL && state != State.RECIPIENTS) {
+            return NEED_MAIL_BEFORE_RCPT;
+        }
+        if (!line.regionMatches(true, position, "TO:", 0, 3)) {
+            return SYNTAX_ERROR;
+        }
+        int pathStart = skipSpaces(line, position + 3);
+        int pathEnd = pathStart < line.length() && line.charAt(pathStart) == '<' ? line.indexOf('>', pathStart) : -1;
+        if (pathEnd < 0) {
+            return SYNTAX_ERROR;
+        }
+        int parameters = skipSpaces(line, pathEnd + 1);
+        if (parameters < line.length()) {
+            // No extension defines parameters for RCPT
+            return parameters == pathEnd + 1 ? SYNTAX_ERROR :
+                    UNKNOWN_PARAMETER;
+        }
+
+        String toAddress = parseAddress(line, pathStart + 1, pathEnd);
+        if (toAddress == null) {
+            return Mailbox.isValidUser(line.substring(pathStart + 1, pathEnd).trim()) ? PARAMETER_ERROR :
+                    NO_SUCH_USER;
+        }
+        if (!Mailbox.isValidUser(toAddress)) {
+            return NO_SUCH_USER;
+        }
+        if (!client.allowRecipient(recipients.size())) {
+            return TOO_MANY_RECIPIENTS;
+        }
+
+        recipients.add(toAddress);
+        state = State.RECIPIENTS;
+        return OK;
+    }
+
+    private byte[] handleData(String line, int position) {
+        if (state == State.READY) {
+            return NEED_MAIL_BEFORE_DATA;
+        }
+        if (state == State.MAIL) {
+            return NEED_RCPT_BEFORE_DATA;
+        }
+        try {
+            spool = new MessageSpool(MAX_MESSAGE_SIZE);
+        } catch (IOException e) {
+            Log.warn("Failed to create spool file: " + e.getMessage());
+            return LOCAL_ERROR;
+        }
+        state = State.DATA;
+        return START_MAIL_INPUT;
+    }
+
+    private byte[] handleRset(String line, int position) {
+        // Reset all state variables to initial values, but keep the HELO state as per RFC 5321
+        resetState();
+        state = State.READY;
+        return OK;
+    }
+
+    private byte[] handleQuit(String line, int position) {
+        state = State.QUIT;
+        return ServerIdentity.get().quitReply();
+    }
+
+    private byte[] handleVrfy(String line, int position) {
+        String argument = argument(line, position);
+        if (argument == null) {
+            return VRFY_SYNTAX_ERROR;
+        }
+        if (!Mailbox.isValidUser(argument)) {
+            return USER_NOT_FOUND;
+        }
+        String vrfyAddress = argument.startsWith("<") && argument.endsWith(">") ?
+                parseAddress(argument, 1, argument.length() - 1) : parseAddress(argument, 0, argument.length());
+        if (vrfyAddress == null) {
+            return PARAMETER_ERROR;
+        }
+        return reply("250 " + vrfyAddress);
+    }
+
+    /**
+     * Appends raw message content received after a DATA command to the message being received. Dot-stuffing has
+     * already been removed by the caller.
+     *
+     * @param bytes  Array containing the content.
+     * @param offset Offset of the content in the array.
+     * @param length Number of bytes of content.
+     */
+    void data(byte[] bytes, int offset, int length) {
+        if (length == 0 || dataFailed) {
+            return;
+        }
+        DATA_BYTES.add(length);
+        try {
+            spool.write(bytes, offset, length);
+        } catch (IOException e) {
+            Log.warn("Failed to write to spool file: " + e.getMessage());
+            dataFailed = true;
+        }
+    }
+
+    /**
+     * Completes the message being received, delivering it to all recipients.
+     *
+     * @return The encoded response to be sent back to the client, including its line terminator. The returned array
+     * must not be modified.
+     */
+    byte[] endOfData() {
+        try {
+            // Received content counts against the rate of the client, whether it is delivered or not
+            client.chargeMessage(sender, spool.size());
+
+            if (dataFailed) {
+                resetState();
+                return LOCAL_ERROR;
+            }
+
+            if (spool.isOverflow()) {
+                resetState();
+                return SIZE_EXCEEDED;
+            }
+
+            if (spool.size() == 0) {
+                resetState();
+                return EMPTY_MESSAGE;
+            }
+
+            // Attempt to create mailboxes for all valid recipients
+            List<Mailbox> recipientMailboxes = new ArrayList<>();
+            for (String recipient : recipients) {
+                try {
+                    recipientMailboxes.add(new Mailbox(recipient));
+                } catch (Mailbox.InvalidUserException e) {
+                    Log.warn("Invalid recipient: " + recipient + " -> " + e.getMessage());
+                    resetState(); // reset state even on error
+                    return INVALID_RECIPIENT;
+                }
+            }
+
+            // Attempt to write message to mailboxes
+            try {
+                spool.deliver(recipientMailboxes);
+            } catch (DeliveryQueue.QueueFullException e) {
+                resetState();
+                return QUEUE_FULL;
+            } catch (IOException e) {
+                Log.warn("Failed to write to mailboxes: " + e.getMessage());
+                resetState(); // reset state even on error
+                return WRITE_ERROR;
+            }
+
+            // Successfully delivered, or queued for delivery
+            MESSAGES_ACCEPTED.increment();
+            resetState();
+            return OK;
+
+        } catch (Exception e) {
+            Log.error("Unexpected error in endOfData", e);
+            resetState();
+            return INTERNAL_ERROR;
+        }
+    }
+
+    /**
+     * Encodes a single-line response, appending the line terminator.
+     */
+    static byte[] reply(String response) {
+        return (response + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the arguments of a command, without surrounding whitespace, or null if there are no arguments.
+     */
+    private static String argument(String line, int position) {
+        String argument = line.substring(position).trim();
+        return argument.isEmpty() ? null : argument;
+    }
+
+    /**
+     * Validates the email address found in the specified range of a line, ignoring surrounding whitespace. Addresses
+     * must have a local part of letters, digits and <code>._%+-</code>, and a domain of letters, digits, dots and
+     * hyphens ending in a top-level domain of at least two letters.
+     *
+     * @return The address, or null if it is not a valid address.
+     */
+    static String parseAddress(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int at = start;
+        while (at < end && isLocalPartChar(line.charAt(at))) {
+            at++;
+        }
+        if (at == start || at == end || line.charAt(at) != '@') {
+            return null;
+        }
+        int lastDot = -1;
+        for (int i = at + 1; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                lastDot = i;
+            } else if (!isLetterOrDigit(c) && c != '-') {
+                return null;
+            }
+        }
+        if (lastDot <= at + 1 || end - lastDot - 1 < 2) {
+            return null;
+        }
+        for (int i = lastDot + 1; i < end; i++) {
+            char c = line.charAt(i);
+            if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z')) {
+                return null;
+            }
+        }
+        return line.substring(start, end);
+    }
+
+    private static boolean isLocalPartChar(char c) {
+        return isLetterOrDigit(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9';
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+    }
+
+    private static int skipSpaces(String line, int position) {
+        while (position < line.length() && isSpace(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Returns true if the specified range of a line is the keyword, in any case.
+     */
+    private static boolean matchesKeyword(String line, int start, int end, String keyword) {
+        return end - start == keyword.length() && line.regionMatches(true, start, keyword, 0, keyword.length());
+    }
+
+    /**
+     * Parses the decimal number in the specified range of a line.
+     *
+     * @return The number, Long.MAX_VALUE if it is too large, or -1 if the range is not a number.
+     */
+    private static long parseNumber(String line, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value > (Long.MAX_VALUE - 9) / 10 ? Long.MAX_VALUE : value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void resetState() {
+        sender = null;
+        recipients.clear();
+        if (state == State.MAIL || state == State.RECIPIENTS || state == State.DATA) {
+            state = State.READY;
+        }
+        dataFailed = false;
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Counter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-phase timeouts of an SMTP session, after RFC 5321 (section 4.5.3.2). Each is set in seconds by a system
+ * property:
+ * <ul>
+ *     <li><code>mail.smtp.timeout.greeting</code> (default 300): from the connection to the HELO or EHLO command;</li>
+ *     <li><code>mail.smtp.timeout.command</code> (default 300): from one complete command line to the next;</li>
+ *     <li><code>mail.smtp.timeout.dataBlock</code> (default 180): between two reads of message content;</li>
+ *     <li><code>mail.smtp.timeout.dataTermination</code> (default 600): from the DATA command to the end of the
+ *     content.</li>
+ * </ul>
+ * Only complete command lines push the command timeout back, and the content of a message must be complete within the
+ * termination timeout however steadily it arrives, so a client trickling bytes cannot hold a session open
+ * indefinitely. Sessions that time out are counted per phase in <code>mail_sessions_timed_out_total</code>.
+ */
+final class SmtpTimeouts {
+
+    static final long GREETING = seconds("mail.smtp.timeout.greeting", 300);
+    static final long COMMAND = seconds("mail.smtp.timeout.command", 300);
+    static final long DATA_BLOCK = seconds("mail.smtp.timeout.dataBlock", 180);
+    static final long DATA_TERMINATION = seconds("mail.smtp.timeout.dataTermination", 600);
+
+    private static final Counter GREETING_TIMEOUTS = ServerMetrics.SMTP.timeouts("greeting");
+    private static final Counter COMMAND_TIMEOUTS = ServerMetrics.SMTP.timeouts("command");
+    private static final Counter DATA_BLOCK_TIMEOUTS = ServerMetrics.SMTP.timeouts("data_block");
+    private static final Counter DATA_TERMINATION_TIMEOUTS = ServerMetrics.SMTP.timeouts("data_termination");
+
+    private final SessionTimeout timeout;
+    private long commands = -1;
+    private boolean receivingData = false;
+    private long dataDeadline;
+
+    /**
+     * @param expire Asks the session to end, see {@link SessionTimeout}.
+     * @param abort  Closes the connection.
+     */
+    SmtpTimeouts(Runnable expire, Runnable abort) {
+        this.timeout = new SessionTimeout(expire, abort);
+    }
+
+    private static long seconds(String property, long defaultSeconds) {
+        return TimeUnit.SECONDS.toNanos(Long.getLong(property, defaultSeconds));
+    }
+
+    /**
+     * Arms the greeting timeout. Must be called when the connection is established.
+     */
+    void start() {
+        timeout.armAt(System.nanoTime() + GREETING, GREETING_TIMEOUTS);
+    }
+
+    /**
+     * Arms the timeout of the current phase of a session. Must be called after every read, once the input has been
+     * processed.
+     *
+     * @param session The session the input was passed to.
+     */
+    void afterInput(SmtpSession session) {
+        long now = System.nanoTime();
+        if (session.isReceivingData()) {
+            if (!receivingData) {
+                receivingData = true;
+                dataDeadline = now + DATA_TERMINATION;
+            }
+            long blockDeadline = now + DATA_BLOCK;
+            if (blockDeadline - dataDeadline < 0)
+                timeout.armAt(blockDeadline, DATA_BLOCK_TIMEOUTS);
+            else
+                timeout.armAt(dataDeadline, DATA_TERMINATION_TIMEOUTS);
+            return;
+        }
+        if (session.isGreeted() && (receivingData || session.commandCount() != commands)) {
+            receivingData = false;
+            commands = session.commandCount();
+            timeout.armAt(now + COMMAND, COMMAND_TIMEOUTS);
+        }
+    }
+
+    /**
+     * Returns true if the session timed out, in which case the timeout reply should be sent and the connection closed.
+     */
+    boolean isExpired() {
+        return timeout.isExpired();
+    }
+
+    /**
+     * Disarms the timeout. Must be called once the connection is closed.
+     */
+    void cancel() {
+        timeout.cancel();
+    }
+}
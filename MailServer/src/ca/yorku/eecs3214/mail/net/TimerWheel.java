@@ -0,0 +1,213 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.log.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel shared by all sessions, for timeouts that are pushed back far more often than they expire, such
+ * as idle timeouts. Time is divided in ticks of <code>mail.timer.tickMillis</code> (default 100) milliseconds, and a
+ * timeout is kept in the slot of the tick in which it expires, in a wheel of 1024 slots; a single background thread
+ * advances the wheel every tick and fires the timeouts that are due in the current slot, so a timeout fires at most one
+ * tick late.
+ * <p>
+ * Each session has a single {@link Timeout}, created once. Pushing it back to a later deadline, e.g., after every read,
+ * only writes the new deadline: the timeout stays in its slot, and the wheel moves it to the slot of its new deadline
+ * when it reaches the old one. Only moving a deadline earlier, or arming a timeout that is not in the wheel, hands it to
+ * the wheel thread, through a lock-free stack linked through the timeouts themselves. Slots are lists linked through the
+ * timeouts as well, and are only touched by the wheel thread, so nothing is allocated and no lock is taken either way.
+ */
+final class TimerWheel {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Integer.getInteger("mail.timer.tickMillis", 100)));
+    private static final int SLOTS = 1024;
+    private static final int MASK = SLOTS - 1;
+    private static final long NOT_SCHEDULED = Long.MAX_VALUE;
+
+    private final long origin = System.nanoTime();
+    private final Timeout[] slots = new Timeout[SLOTS];
+    private final AtomicReference<Timeout> pending = new AtomicReference<>();
+    // Next tick to be processed, only used by the wheel thread
+    private long currentTick = 0;
+
+    private TimerWheel() {
+        Thread.ofPlatform().daemon().name("timer-wheel").start(this::run);
+    }
+
+    /**
+     * Returns the timer wheel of this server.
+     *
+     * @return The timer wheel.
+     */
+    static TimerWheel get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Creates a timeout, initially not armed.
+     *
+     * @param action What to do when the timeout expires. Runs on the wheel thread, so it must not block.
+     * @return The new timeout.
+     */
+    Timeout newTimeout(Runnable action) {
+        return new Timeout(action);
+    }
+
+    private long tickOf(long nanos) {
+        return Math.floorDiv(nanos - origin, TICK);
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            long now = System.nanoTime();
+            long nowTick = tickOf(now);
+            drainPending();
+            while (currentTick <= nowTick) {
+                expire(now);
+                currentTick++;
+            }
+            LockSupport.parkNanos(this, origin + currentTick * TICK - System.nanoTime());
+        }
+    }
+
+    /**
+     * Moves the timeouts handed over by other threads to the slot of their current deadline.
+     */
+    private void drainPending() {
+        Timeout timeout = pending.getAndSet(null);
+        while (timeout != null) {
+            Timeout next = timeout.nextPending;
+            timeout.nextPending = null;
+            // From here on, a new change is handed over again
+            timeout.queued.set(false);
+            unlink(timeout);
+            if (!timeout.cancelled)
+                insert(timeout, currentTick);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Fires the timeouts of the current slot that are due, and moves the others to the slot of their current deadline.
+     */
+    private void expire(long now) {
+        int slot = (int) (currentTick & MASK);
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.slot = -1;
+            timeout.scheduledTick = NOT_SCHEDULED;
+            if (!timeout.cancelled) {
+                if (timeout.deadline - now <= 0) {
+                    try {
+                        timeout.action.run();
+                    } catch (RuntimeException e) {
+                        Log.warn("Error running a timeout action.", e);
+                    }
+                } else {
+                    insert(timeout, currentTick + 1);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void insert(Timeout timeout, long minTick) {
+        long tick = Math.max(tickOf(timeout.deadline), minTick);
+        int slot = (int) (tick & MASK);
+        timeout.slot = slot;
+        timeout.scheduledTick = tick;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0)
+            return;
+        if (timeout.prev == null)
+            slots[timeout.slot] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        timeout.scheduledTick = NOT_SCHEDULED;
+    }
+
+    /**
+     * A timeout, which may be armed, pushed back and cancelled any number of times, from any thread.
+     */
+    final class Timeout {
+
+        private final Runnable action;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+        private volatile long scheduledTick = NOT_SCHEDULED;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private Timeout nextPending;
+        // Position in the wheel, only used by the wheel thread
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+
+        private Timeout(Runnable action) {
+            this.action = action;
+        }
+
+        /**
+         * Arms the timeout, or changes its deadline if it is already armed.
+         *
+         * @param nanos The time until the timeout expires, in nanoseconds.
+         */
+        void expireAfter(long nanos) {
+            expireAt(System.nanoTime() + nanos);
+        }
+
+        /**
+         * Arms the timeout, or changes its deadline if it is already armed.
+         *
+         * @param deadline The time at which the timeout expires, as returned by <code>System.nanoTime()</code>.
+         */
+        void expireAt(long deadline) {
+            cancelled = false;
+            this.deadline = deadline;
+            // A later deadline is picked up when the wheel reaches the current slot
+            if (tickOf(deadline) < scheduledTick)
+                handOver();
+        }
+
+        /**
+         * Disarms the timeout. It is removed from the wheel by the next tick.
+         */
+        void cancel() {
+            cancelled = true;
+            handOver();
+        }
+
+        private void handOver() {
+            if (!queued.compareAndSet(false, true))
+                return;
+            Timeout head;
+            do {
+                head = pending.get();
+                nextPending = head;
+            } while (!pending.compareAndSet(head, this));
+        }
+    }
+
+    private static class Holder {
+        private static final TimerWheel INSTANCE = new TimerWheel();
+    }
+}
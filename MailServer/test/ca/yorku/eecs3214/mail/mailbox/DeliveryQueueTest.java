@@ -0,0 +1,101 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of the messages left in the delivery queue by a previous run.
+ */
+class DeliveryQueueTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void requeuesOnlyTheRecipientsNotYetReached() throws IOException {
+        message("a");
+        message("b");
+        journal("""
+                Q a x@example.com y@example.com z@example.com
+                Q b w@example.com
+                R a x@example.com
+                R a z@example.com
+                """);
+
+        List<DeliveryQueue.Entry> entries = DeliveryQueue.recover(directory);
+
+        assertEquals(2, entries.size());
+        assertEquals("a", entries.get(0).id);
+        assertEquals(List.of("y@example.com"), entries.get(0).recipients);
+        assertEquals(directory.resolve("a.msg"), entries.get(0).file);
+        assertEquals("b", entries.get(1).id);
+        assertEquals(List.of("w@example.com"), entries.get(1).recipients);
+        assertEquals("Q a y@example.com\nQ b w@example.com\n", readJournal());
+    }
+
+    @Test
+    void dropsCompletedAndMissingMessages() throws IOException {
+        message("a");
+        message("c");
+        journal("""
+                Q a x@example.com
+                Q b x@example.com
+                Q c x@example.com
+                D a
+                """);
+
+        List<DeliveryQueue.Entry> entries = DeliveryQueue.recover(directory);
+
+        // a was completed, and b has no message file
+        assertEquals(1, entries.size());
+        assertEquals("c", entries.get(0).id);
+        assertFalse(Files.exists(directory.resolve("a.msg")));
+        assertEquals("Q c x@example.com\n", readJournal());
+    }
+
+    @Test
+    void removesMessagesThatWereNeverAcknowledged() throws IOException {
+        message("a");
+        message("b");
+        message("orphan");
+        // The record of b was cut short by a crash, so the client was never told it was accepted
+        journal("Q a x@example.com\nQ b x@exam");
+
+        List<DeliveryQueue.Entry> entries = DeliveryQueue.recover(directory);
+
+        assertEquals(1, entries.size());
+        assertEquals("a", entries.get(0).id);
+        assertTrue(Files.exists(directory.resolve("a.msg")));
+        assertFalse(Files.exists(directory.resolve("b.msg")));
+        assertFalse(Files.exists(directory.resolve("orphan.msg")));
+        assertEquals("Q a x@example.com\n", readJournal());
+    }
+
+    @Test
+    void startsEmptyWithoutAJournal() throws IOException {
+        assertTrue(DeliveryQueue.recover(directory).isEmpty());
+        assertEquals("", readJournal());
+    }
+
+    private void message(String id) throws IOException {
+        Files.writeString(directory.resolve(id + ".msg"), "Subject: " + id + "\r\n\r\nBody\r\n");
+    }
+
+    private void journal(String records) throws IOException {
+        Files.writeString(directory.resolve("journal"), records, StandardCharsets.UTF_8);
+    }
+
+    private String readJournal() throws IOException {
+        return Files.readString(directory.resolve("journal"), StandardCharsets.UTF_8);
+    }
+}
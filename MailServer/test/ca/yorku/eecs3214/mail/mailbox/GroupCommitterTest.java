@@ -0,0 +1,53 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Completion of the requests in a group-commit batch.
+ */
+class GroupCommitterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void failsOnlyTheRequestWhoseFileCannotBeForced() throws Exception {
+        File good = Files.writeString(directory.resolve("1.mail"), "content").toFile();
+        File other = Files.writeString(directory.resolve("2.mail"), "content").toFile();
+        // Cannot be opened, since its parent is a regular file rather than a directory
+        File broken = new File(good, "3.mail");
+
+        GroupCommitter.Request first = new GroupCommitter.Request(List.of(good));
+        GroupCommitter.Request failing = new GroupCommitter.Request(List.of(other, broken));
+        GroupCommitter.Request last = new GroupCommitter.Request(List.of(other));
+        GroupCommitter.commitBatch(List.of(first, failing, last));
+
+        assertNull(first.done.get());
+        ExecutionException e = assertThrows(ExecutionException.class, failing.done::get);
+        assertInstanceOf(IOException.class, e.getCause());
+        assertNull(last.done.get());
+    }
+
+    @Test
+    void treatsAVanishedFileAsCommitted() throws Exception {
+        File kept = Files.writeString(directory.resolve("1.mail"), "content").toFile();
+        File deleted = directory.resolve("2.mail").toFile();
+
+        GroupCommitter.Request request = new GroupCommitter.Request(List.of(kept, deleted));
+        GroupCommitter.commitBatch(List.of(request));
+
+        assertNull(request.done.get());
+    }
+}
@@ -0,0 +1,98 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Loading, updating and rebuilding the index of a mailbox.
+ */
+class MailboxIndexTest {
+
+    @TempDir
+    Path mailDirectory;
+
+    private MailboxIndex index;
+
+    @BeforeEach
+    void createIndex() {
+        index = new MailboxIndex(mailDirectory.toFile(), mailDirectory.toFile());
+    }
+
+    @Test
+    void mustBeRebuiltWhenMissing() throws IOException {
+        addFile("1.mail", "one");
+        assertNull(index.load());
+    }
+
+    @Test
+    void listsTheMessagesOnceRebuilt() throws IOException {
+        List<MailMessage> messages = List.of(addFile("1.mail", "one"), addFile("2.mail", "second"));
+        index.rewrite(messages);
+
+        List<MailMessage> loaded = index.load();
+        assertNotNull(loaded);
+        assertEquals(names(messages), names(loaded));
+        assertEquals(3, loaded.get(0).getFileSize());
+        assertEquals(6, loaded.get(1).getFileSize());
+    }
+
+    @Test
+    void followsAddedAndDeletedMessages() throws IOException {
+        MailMessage first = addFile("1.mail", "one");
+        index.rewrite(List.of(first));
+        MailMessage second = addFile("2.mail", "second");
+        index.recordAdded(second.getFile(), second.getFileSize());
+        assertEquals(List.of("1.mail", "2.mail"), names(index.load()));
+
+        Files.delete(first.getFile().toPath());
+        index.recordDeleted(List.of(first), List.of(second));
+        assertEquals(List.of("2.mail"), names(index.load()));
+    }
+
+    @Test
+    void mustBeRebuiltWhenAMessageIsNotIndexed() throws IOException {
+        index.rewrite(List.of(addFile("1.mail", "one")));
+        addFile("2.mail", "two");
+        assertNull(index.load());
+    }
+
+    @Test
+    void mustBeRebuiltWhenTheFilesChangeButNotTheirNumber() throws IOException {
+        MailMessage first = addFile("1.mail", "one");
+        index.rewrite(List.of(first, addFile("2.mail", "two")));
+        Files.delete(first.getFile().toPath());
+        addFile("3.mail", "three");
+        assertNull(index.load());
+    }
+
+    @Test
+    void ignoresFilesThatAreNotMessages() throws IOException {
+        index.rewrite(List.of(addFile("1.mail", "one")));
+        Files.writeString(mailDirectory.resolve("notes.txt"), "not a message");
+        assertEquals(List.of("1.mail"), names(index.load()));
+    }
+
+    private MailMessage addFile(String name, String content) throws IOException {
+        File file = Files.writeString(mailDirectory.resolve(name), content).toFile();
+        return index.message(file, file.length());
+    }
+
+    private static List<String> names(List<MailMessage> messages) {
+        List<String> names = new ArrayList<>();
+        for (MailMessage message : messages)
+            names.add(message.getFile().getName());
+        return names;
+    }
+}
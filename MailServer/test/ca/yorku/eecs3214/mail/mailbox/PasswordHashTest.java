@@ -0,0 +1,64 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parsing and verification of the stored forms of passwords.
+ */
+class PasswordHashTest {
+
+    // PBKDF2-HMAC-SHA256 of "password" with salt "salt" and one iteration, a well-known test vector
+    private static final String KNOWN_HASH = PasswordHash.PREFIX + "1$" +
+            Base64.getEncoder().encodeToString("salt".getBytes(StandardCharsets.UTF_8)) + "$" +
+            Base64.getEncoder().encodeToString(
+                    HexFormat.of().parseHex("120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b"));
+
+    @Test
+    void verifiesAKnownHash() {
+        assertTrue(PasswordHash.verify("password", KNOWN_HASH));
+        assertFalse(PasswordHash.verify("Password", KNOWN_HASH));
+    }
+
+    @Test
+    void verifiesItsOwnHashes() {
+        String stored = PasswordHash.hash("correct horse");
+        assertTrue(stored.startsWith(PasswordHash.PREFIX));
+        assertTrue(PasswordHash.verify("correct horse", stored));
+        assertFalse(PasswordHash.verify("correct horse ", stored));
+        // Every hash has its own salt
+        assertNotEquals(stored, PasswordHash.hash("correct horse"));
+    }
+
+    @Test
+    void comparesPlainTextPasswordsExactly() {
+        assertTrue(PasswordHash.verify("password123", "password123"));
+        assertFalse(PasswordHash.verify("password12", "password123"));
+        assertFalse(PasswordHash.verify("", "password123"));
+    }
+
+    @Test
+    void rejectsMalformedHashes() {
+        String[] fields = KNOWN_HASH.substring(PasswordHash.PREFIX.length()).split("\\$");
+        String[] malformed = {
+                PasswordHash.PREFIX,
+                PasswordHash.PREFIX + fields[0] + "$" + fields[1],
+                PasswordHash.PREFIX + "x$" + fields[1] + "$" + fields[2],
+                PasswordHash.PREFIX + "0$" + fields[1] + "$" + fields[2],
+                PasswordHash.PREFIX + "-1$" + fields[1] + "$" + fields[2],
+                PasswordHash.PREFIX + fields[0] + "$not base64!$" + fields[2],
+                PasswordHash.PREFIX + fields[0] + "$" + fields[1] + "$not base64!",
+                PasswordHash.PREFIX + fields[0] + "$" + fields[1] + "$",
+                KNOWN_HASH + "$extra",
+        };
+        for (String stored : malformed)
+            assertFalse(PasswordHash.verify("password", stored), stored);
+    }
+}
@@ -0,0 +1,119 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Byte-stuffing of the messages sent by the POP3 server in response to RETR and TOP. The mail store and users database
+ * are relative to the working directory, which the build sets to a directory of its own.
+ */
+class MyPOPServerTest {
+
+    private static final String USER = "pop.test@example.com";
+    private static final String PASSWORD = "secret";
+    private static final String MESSAGE = "Subject: dots\r\n\r\n.leading\r\nmiddle\r\n..two\r\n.\r\nlast";
+
+    private Socket client;
+    private BufferedReader in;
+    private Writer out;
+    private Thread server;
+
+    @BeforeAll
+    static void createUser() throws IOException, InterruptedException {
+        Files.writeString(Path.of(Mailbox.USER_FILE_NAME), USER + " " + PASSWORD + "\n");
+        // If the users database was already loaded, it is reloaded once the file changes
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!Mailbox.isValidUser(USER) && System.nanoTime() - deadline < 0)
+            Thread.sleep(50);
+        assertTrue(Mailbox.isValidUser(USER));
+
+        Path mailDirectory = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, USER).toPath();
+        if (Files.exists(mailDirectory)) {
+            try (Stream<Path> files = Files.walk(mailDirectory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                    Files.delete(file);
+            }
+        }
+        try (Writer writer = new Mailbox(USER).getNewMessageWriter()) {
+            writer.write(MESSAGE);
+        }
+    }
+
+    @BeforeEach
+    void connect() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket socket = listener.accept();
+            server = Thread.ofPlatform().start(new MyPOPServer(socket));
+        }
+        client.setSoTimeout(10000);
+        in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+        out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.ISO_8859_1);
+        assertTrue(in.readLine().startsWith("+OK"));
+        assertTrue(command("USER " + USER).startsWith("+OK"));
+        assertTrue(command("PASS " + PASSWORD).startsWith("+OK"));
+    }
+
+    @AfterEach
+    void disconnect() throws IOException, InterruptedException {
+        command("QUIT");
+        server.join(10000);
+        client.close();
+    }
+
+    @Test
+    void stuffsLinesStartingWithADotInRetr() throws IOException {
+        assertTrue(command("RETR 1").startsWith("+OK"));
+        assertEquals(List.of("Subject: dots", "", "..leading", "middle", "...two", "..", "last"), multiline());
+    }
+
+    @Test
+    void stuffsLinesStartingWithADotInTop() throws IOException {
+        assertTrue(command("TOP 1 1").startsWith("+OK"));
+        assertEquals(List.of("Subject: dots", "", "..leading"), multiline());
+        assertTrue(command("TOP 1 3").startsWith("+OK"));
+        assertEquals(List.of("Subject: dots", "", "..leading", "middle", "...two"), multiline());
+    }
+
+    @Test
+    void sendsOnlyTheHeadersForTopWithNoLines() throws IOException {
+        assertTrue(command("TOP 1 0").startsWith("+OK"));
+        assertEquals(List.of("Subject: dots", ""), multiline());
+    }
+
+    private String command(String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+        return in.readLine();
+    }
+
+    /**
+     * Reads the lines of a multiline response up to its terminating line, which is not included.
+     */
+    private List<String> multiline() throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while (!(line = in.readLine()).equals("."))
+            lines.add(line);
+        return lines;
+    }
+}
@@ -0,0 +1,128 @@
+package ca.yorku.eecs3214.mail.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Framing of SMTP input: command lines, dot-unstuffing of message content and the end of the data.
+ */
+class SmtpLineReaderTest {
+
+    @Test
+    void removesLeadingDotsFromMessageLines() throws IOException {
+        RecordingSession session = feed("DATA\r\n..one\r\n.two\r\nthree\r\n...\r\n.\r\nNOOP\r\n");
+        assertEquals(List.of(".one\r\ntwo\r\nthree\r\n..\r\n"), session.messages);
+        assertEquals(List.of("DATA", "NOOP"), session.commands);
+    }
+
+    @Test
+    void endsDataOnlyAtCrLfDotCrLf() throws IOException {
+        String content = "hello\n.\nMAIL FROM:<a@b>\n.\r\nRCPT TO:<c@d>\r.\r\nDATA\r\n";
+        RecordingSession session = feed("DATA\r\n" + content + ".\r\nNOOP\r\n");
+        // Bare LF and CR never end a line, so none of the embedded commands is seen as one
+        assertEquals(List.of(content), session.messages);
+        assertEquals(List.of("DATA", "NOOP"), session.commands);
+    }
+
+    @Test
+    void endsDataAfterEmptyMessage() throws IOException {
+        RecordingSession session = feed("DATA\r\n.\r\n");
+        assertEquals(List.of(""), session.messages);
+    }
+
+    @Test
+    void producesTheSameContentWhereverTheInputIsSplit() throws IOException {
+        String input = "DATA\r\nabc\r\n.\rx\r\n..\r\n.\r\r\n.\r\nNOOP\r\n";
+        RecordingSession whole = feed(input);
+        assertEquals(List.of("abc\r\n\rx\r\n.\r\n\r\r\n"), whole.messages);
+        for (int split = 1; split < input.length(); split++) {
+            RecordingSession session = feed(input.substring(0, split), input.substring(split));
+            assertEquals(whole.messages, session.messages, "split at " + split);
+            assertEquals(whole.commands, session.commands, "split at " + split);
+        }
+    }
+
+    @Test
+    void refusesOverlongCommandLines() throws IOException {
+        RecordingSession session = new RecordingSession();
+        SmtpLineReader reader = new SmtpLineReader();
+        List<String> responses = new ArrayList<>();
+        write(reader, "X".repeat(SmtpLineReader.MAX_COMMAND_LENGTH + 10) + "\r\nNOOP\r\n");
+        reader.process(session, response -> responses.add(new String(response, StandardCharsets.UTF_8)));
+        assertTrue(responses.get(0).startsWith("500"));
+        assertEquals(List.of("NOOP"), session.commands);
+    }
+
+    @Test
+    void stopsAtEndOfMessageWhenDeliveryIsDeferred() throws IOException {
+        RecordingSession session = new RecordingSession();
+        SmtpLineReader reader = new SmtpLineReader(true);
+        write(reader, "DATA\r\nbody\r\n.\r\nNOOP\r\n");
+        reader.process(session, response -> { });
+        assertTrue(reader.isDeliveryPending());
+        assertEquals(List.of("DATA"), session.commands);
+
+        assertEquals("250 OK\r\n", new String(session.endOfData(), StandardCharsets.UTF_8));
+        reader.deliveryCompleted();
+        reader.process(session, response -> { });
+        assertEquals(List.of("body\r\n"), session.messages);
+        assertEquals(List.of("DATA", "NOOP"), session.commands);
+    }
+
+    private static RecordingSession feed(String... chunks) throws IOException {
+        RecordingSession session = new RecordingSession();
+        SmtpLineReader reader = new SmtpLineReader();
+        for (String chunk : chunks) {
+            write(reader, chunk);
+            reader.process(session, response -> { });
+        }
+        return session;
+    }
+
+    private static void write(SmtpLineReader reader, String chunk) {
+        reader.buffer().put(chunk.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Session that records the commands and messages it receives instead of acting on them. DATA starts a message.
+     */
+    private static class RecordingSession extends SmtpSession {
+        private final List<String> commands = new ArrayList<>();
+        private final List<String> messages = new ArrayList<>();
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private boolean receivingData = false;
+
+        @Override
+        byte[] processLine(String inputLine) {
+            commands.add(inputLine);
+            receivingData = inputLine.equals("DATA");
+            return SmtpSession.reply(receivingData ? "354 Go ahead" : "250 OK");
+        }
+
+        @Override
+        boolean isReceivingData() {
+            return receivingData;
+        }
+
+        @Override
+        void data(byte[] bytes, int offset, int length) {
+            content.write(bytes, offset, length);
+        }
+
+        @Override
+        byte[] endOfData() {
+            messages.add(content.toString(StandardCharsets.ISO_8859_1));
+            content.reset();
+            receivingData = false;
+            return SmtpSession.reply("250 OK");
+        }
+    }
+}
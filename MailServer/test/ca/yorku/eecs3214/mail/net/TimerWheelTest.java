@@ -0,0 +1,70 @@
+package ca.yorku.eecs3214.mail.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Expiry of timeouts in the shared timer wheel, which has a resolution of one tick (100 ms by default).
+ */
+class TimerWheelTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void firesOnceTheDeadlinePasses() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimerWheel.get().newTimeout(fired::countDown).expireAfter(200 * MILLIS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= 200 * MILLIS);
+    }
+
+    @Test
+    void doesNotFireOnceCancelled() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = TimerWheel.get().newTimeout(fired::countDown);
+        timeout.expireAfter(200 * MILLIS);
+        timeout.cancel();
+        assertFalse(fired.await(600, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void waitsForADeadlinePushedBack() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = TimerWheel.get().newTimeout(fired::countDown);
+        long start = System.nanoTime();
+        timeout.expireAfter(200 * MILLIS);
+        timeout.expireAt(start + 800 * MILLIS);
+        assertFalse(fired.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= 800 * MILLIS);
+    }
+
+    @Test
+    void firesEarlyForADeadlineMovedForward() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = TimerWheel.get().newTimeout(fired::countDown);
+        timeout.expireAfter(TimeUnit.MINUTES.toNanos(1));
+        timeout.expireAfter(100 * MILLIS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void canBeArmedAgainAfterFiring() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(2);
+        TimerWheel.Timeout timeout = TimerWheel.get().newTimeout(fired::countDown);
+        timeout.expireAfter(100 * MILLIS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (fired.getCount() == 2 && System.nanoTime() - deadline < 0)
+            Thread.sleep(10);
+        assertEquals(1, fired.getCount());
+        timeout.expireAfter(100 * MILLIS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+}
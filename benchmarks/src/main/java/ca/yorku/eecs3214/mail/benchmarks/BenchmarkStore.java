@@ -0,0 +1,89 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Users database and mail storage used by the benchmarks. Like the servers, the benchmarks use the
+ * <code>users.txt</code> file and the <code>mail.store</code> directory in the current working directory, so they must
+ * be run from a directory created for that purpose; an existing users database that was not created by the benchmarks
+ * is never overwritten.
+ */
+public final class BenchmarkStore {
+
+    public static final int USERS = 1000;
+    public static final String PASSWORD = "benchmark";
+
+    private BenchmarkStore() {
+    }
+
+    /**
+     * Returns the address of one of the benchmark users.
+     *
+     * @param index The number of the user, from 0 to <code>USERS - 1</code>.
+     * @return The user's address.
+     */
+    public static String user(int index) {
+        return "user" + index + "@bench.example";
+    }
+
+    /**
+     * Creates the users database, if it does not exist yet. Must be called before any mailbox is used.
+     *
+     * @throws IllegalStateException If the current directory contains a users database not created by the benchmarks.
+     */
+    public static void prepare() {
+        Path file = Path.of(Mailbox.USER_FILE_NAME);
+        try {
+            if (Files.exists(file)) {
+                try (Stream<String> lines = Files.lines(file)) {
+                    if (lines.noneMatch(line -> line.startsWith(user(0) + " ")))
+                        throw new IllegalStateException("Benchmarks must be run from an empty directory, " +
+                                file.toAbsolutePath() + " is not a benchmark users database");
+                }
+                return;
+            }
+            List<String> lines = new ArrayList<>(USERS);
+            for (int i = 0; i < USERS; i++)
+                lines.add(user(i) + " " + PASSWORD);
+            Files.write(file, lines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Removes a user's mail directory, including all its messages and the mailbox index.
+     */
+    public static void clear(String user) {
+        deleteFiles(Mailbox.USER_MAIL_BASE_DIRECTORY.toPath().resolve(user), true);
+    }
+
+    /**
+     * Removes the message files of a user, leaving the mail directory itself and the mailbox index in place.
+     */
+    public static void deleteMessages(String user) {
+        deleteFiles(Mailbox.USER_MAIL_BASE_DIRECTORY.toPath().resolve(user), false);
+    }
+
+    private static void deleteFiles(Path directory, boolean all) {
+        if (!Files.exists(directory))
+            return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                if (all || Mailbox.isMessageFileName(path.getFileName().toString()))
+                    Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, accepting the usual JMH command-line options. The GC profiler is always enabled, so the
+ * allocation rate per operation (<code>gc.alloc.rate.norm</code>) is reported alongside each score and regressions in
+ * allocations show up in the same run as regressions in time.
+ * <p>
+ * Build with <code>mvn package</code>, then run from an empty directory (see {@link BenchmarkStore}), e.g.:
+ * <pre>
+ *     mkdir /tmp/mail-bench &amp;&amp; cd /tmp/mail-bench
+ *     java -jar .../benchmarks/target/benchmarks.jar [regexp] [JMH options]
+ * </pre>
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
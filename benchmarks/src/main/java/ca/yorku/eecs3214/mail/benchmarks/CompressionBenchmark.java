@@ -0,0 +1,120 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.mailbox.MessageSpool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing messages compressed, for a typical message made of a text part and a base64-encoded attachment:
+ * the time to deliver it and read it back, and, as auxiliary counters, the bytes of content and the bytes actually
+ * stored per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    private static final String USER = BenchmarkStore.user(0);
+
+    /**
+     * Value of <code>mail.store.compression</code>. It is read once, when the mailbox classes are loaded, so it is set
+     * before they are used; each value runs in its own fork.
+     */
+    @Param({"none", "deflate"})
+    private String compression;
+
+    @Param({"65536"})
+    private int messageSize;
+
+    private List<Mailbox> mailboxes;
+    private Path content;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long contentBytes;
+        public long storedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        System.setProperty("mail.store.compression", compression);
+        BenchmarkStore.prepare();
+        BenchmarkStore.clear(USER);
+        mailboxes = List.of(new Mailbox(USER));
+        //noinspection ResultOfMethodCallIgnored
+        MessageSpool.SPOOL_DIRECTORY.mkdirs();
+        content = Files.createTempFile(MessageSpool.SPOOL_DIRECTORY.toPath(), "bench", ".spool");
+        Files.write(content, message(messageSize));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteMessages() {
+        BenchmarkStore.deleteMessages(USER);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchmarkStore.clear(USER);
+        Files.deleteIfExists(content);
+    }
+
+    /**
+     * Delivers the message and reads it back, as a POP3 client retrieving it would.
+     */
+    @Benchmark
+    public long deliverAndRead(Sizes sizes) throws IOException {
+        File file = MailWriter.deliver(content, mailboxes, MailWriter.Mode.SINGLE_INSTANCE).get(0);
+        MailMessage message = new MailMessage(file);
+        long read = 0;
+        try (InputStream in = message.openContent()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0)
+                read += count;
+        }
+        sizes.contentBytes += read;
+        sizes.storedBytes += file.length();
+        return read;
+    }
+
+    /**
+     * Builds a message of about the specified size, with headers, a few paragraphs of text, and an attachment of
+     * random bytes, which does not compress beyond what base64 adds.
+     */
+    private static byte[] message(int size) {
+        StringBuilder text = new StringBuilder();
+        text.append("From: sender@example.com\r\n")
+                .append("To: ").append(USER).append("\r\n")
+                .append("Subject: Quarterly report\r\n")
+                .append("MIME-Version: 1.0\r\n")
+                .append("Content-Type: multipart/mixed; boundary=\"part\"\r\n\r\n")
+                .append("--part\r\nContent-Type: text/plain; charset=us-ascii\r\n\r\n");
+        String paragraph = "Please find attached the figures for the last quarter. The numbers for the second month "
+                + "are still preliminary and will be revised once the remaining reports are in.\r\n";
+        while (text.length() < size / 2)
+            text.append(paragraph);
+        text.append("\r\n--part\r\nContent-Type: application/octet-stream\r\n")
+                .append("Content-Transfer-Encoding: base64\r\n\r\n");
+        byte[] attachment = new byte[(size - text.length()) * 3 / 4];
+        new Random(42).nextBytes(attachment);
+        text.append(Base64.getMimeEncoder().encodeToString(attachment)).append("\r\n--part--\r\n");
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
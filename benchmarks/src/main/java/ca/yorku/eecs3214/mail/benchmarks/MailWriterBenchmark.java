@@ -0,0 +1,71 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.mailbox.MessageSpool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of delivering a message to its recipients' mailboxes, as a function of the number of recipients, in each of the
+ * delivery modes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MailWriterBenchmark {
+
+    @Param({"1", "10", "1000"})
+    private int recipients;
+
+    @Param({"SINGLE_INSTANCE", "PER_RECIPIENT"})
+    private MailWriter.Mode mode;
+
+    @Param({"4096"})
+    private int messageSize;
+
+    private List<Mailbox> mailboxes;
+    private Path content;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        BenchmarkStore.prepare();
+        mailboxes = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++)
+            mailboxes.add(new Mailbox(BenchmarkStore.user(i)));
+        // The content must be in the same file system as the mailboxes, so messages can be linked to it
+        //noinspection ResultOfMethodCallIgnored
+        MessageSpool.SPOOL_DIRECTORY.mkdirs();
+        content = Files.createTempFile(MessageSpool.SPOOL_DIRECTORY.toPath(), "bench", ".spool");
+        byte[] bytes = new byte[messageSize];
+        Arrays.fill(bytes, (byte) 'x');
+        Files.write(content, bytes);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteMessages() {
+        for (int i = 0; i < recipients; i++)
+            BenchmarkStore.deleteMessages(BenchmarkStore.user(i));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        Files.deleteIfExists(content);
+    }
+
+    @Benchmark
+    public List<File> deliver() throws IOException {
+        return MailWriter.deliver(content, mailboxes, mode);
+    }
+}
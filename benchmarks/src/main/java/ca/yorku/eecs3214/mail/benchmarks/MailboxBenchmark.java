@@ -0,0 +1,76 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.mailbox.MessageSpool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the mailbox operations that may depend on the number of messages already in the mailbox: creating a new
+ * message, and loading the list of messages when a POP3 client authenticates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MailboxBenchmark {
+
+    private static final String USER = BenchmarkStore.user(0);
+
+    @Param({"100", "10000"})
+    private int existingMessages;
+
+    private Mailbox mailbox;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        BenchmarkStore.prepare();
+        BenchmarkStore.clear(USER);
+        mailbox = new Mailbox(USER);
+        //noinspection ResultOfMethodCallIgnored
+        MessageSpool.SPOOL_DIRECTORY.mkdirs();
+        Path content = Files.createTempFile(MessageSpool.SPOOL_DIRECTORY.toPath(), "bench", ".spool");
+        try {
+            Files.writeString(content, "Subject: benchmark\r\n\r\nHello\r\n");
+            for (int i = 0; i < existingMessages; i++)
+                MailWriter.deliver(content, List.of(mailbox), MailWriter.Mode.SINGLE_INSTANCE);
+        } finally {
+            Files.delete(content);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        BenchmarkStore.clear(USER);
+    }
+
+    /**
+     * Creates, writes and closes a new message. Messages created by the benchmark itself are kept, which only adds to
+     * the number of existing messages.
+     */
+    @Benchmark
+    public void newMessage() throws IOException {
+        try (Writer writer = mailbox.getNewMessageWriter()) {
+            writer.write("Hello\r\n");
+        }
+    }
+
+    /**
+     * Authenticates and loads the list of messages, as done for a new POP3 session.
+     */
+    @Benchmark
+    public int loadMessages() {
+        Mailbox session = new Mailbox(USER);
+        session.loadMessages(BenchmarkStore.PASSWORD);
+        return session.size(true);
+    }
+}
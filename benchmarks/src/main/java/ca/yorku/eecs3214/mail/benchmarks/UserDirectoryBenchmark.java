@@ -0,0 +1,45 @@
+package ca.yorku.eecs3214.mail.benchmarks;
+
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking recipient addresses, as done for every RCPT command, with many sessions checking addresses at the
+ * same time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Thread)
+public class UserDirectoryBenchmark {
+
+    private String[] addresses;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        BenchmarkStore.prepare();
+        // Mostly valid addresses, some with the domain in a different case, and some unknown users
+        addresses = new String[BenchmarkStore.USERS];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = BenchmarkStore.user(i);
+            if (i % 10 == 1)
+                address = address.replace("@bench.example", "@Bench.Example");
+            else if (i % 10 == 2)
+                address = "unknown" + address;
+            addresses[i] = address;
+        }
+    }
+
+    @Benchmark
+    public boolean isValidUser() {
+        String address = addresses[next];
+        next = next + 1 == addresses.length ? 0 : next + 1;
+        return Mailbox.isValidUser(address);
+    }
+}
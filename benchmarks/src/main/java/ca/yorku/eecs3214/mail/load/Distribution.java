@@ -0,0 +1,77 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Discrete distribution of values with relative weights, e.g., of message sizes. Written as a comma-separated list of
+ * <code>value:weight</code> pairs, such as <code>2048:60,16384:30,262144:10</code>; a value without a weight has a
+ * weight of 1, so a single value is a constant.
+ */
+final class Distribution {
+
+    private final long[] values;
+    private final long[] cumulativeWeights;
+
+    private Distribution(long[] values, long[] cumulativeWeights) {
+        this.values = values;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    /**
+     * Parses a distribution.
+     *
+     * @param text The distribution, as a list of <code>value:weight</code> pairs.
+     * @return The distribution.
+     * @throws IllegalArgumentException If the text is not a valid distribution.
+     */
+    static Distribution parse(String text) {
+        String[] entries = text.split(",");
+        long[] values = new long[entries.length];
+        long[] cumulativeWeights = new long[entries.length];
+        long total = 0;
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                if (parts.length > 2)
+                    throw new IllegalArgumentException("Invalid distribution entry: " + entries[i]);
+                values[i] = Long.parseLong(parts[0].trim());
+                long weight = parts.length == 2 ? Long.parseLong(parts[1].trim()) : 1;
+                if (values[i] < 0 || weight <= 0)
+                    throw new IllegalArgumentException("Invalid distribution entry: " + entries[i]);
+                total += weight;
+                cumulativeWeights[i] = total;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid distribution: " + text);
+        }
+        return new Distribution(values, cumulativeWeights);
+    }
+
+    /**
+     * Returns a value drawn at random, with the probability of each value proportional to its weight.
+     */
+    long next() {
+        long weight = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+        int index = Arrays.binarySearch(cumulativeWeights, weight + 1);
+        return values[index >= 0 ? index : -index - 1];
+    }
+
+    /**
+     * Returns all the values of the distribution, in the order they were listed.
+     */
+    long[] values() {
+        return values.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                text.append(',');
+            text.append(values[i]).append(':').append(cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]));
+        }
+        return text.toString();
+    }
+}
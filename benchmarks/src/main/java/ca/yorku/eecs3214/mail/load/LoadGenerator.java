@@ -0,0 +1,179 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator and soak test for the mail servers. Opens a number of concurrent SMTP sessions, and optionally POP3
+ * sessions, against running servers, drives them with a configurable mix of messages for a fixed time, and reports the
+ * throughput and the 50th, 99th and 99.9th percentile latency of every command, of whole SMTP transactions and of
+ * end-to-end delivery (from the start of the SMTP transaction to the retrieval of the message over POP3). Progress is
+ * printed periodically, so a long soak test shows whether the server degrades over time.
+ * <p>
+ * Run it from the benchmarks jar, e.g.:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar ca.yorku.eecs3214.mail.load.LoadGenerator \
+ *     --sessions=50 --pop-sessions=4 --duration=300 --users=MailServer/users.txt
+ * </pre>
+ * Recipients are drawn from the users database given with <code>--users</code>, which must be the one used by the
+ * server; the POP3 clients log in with the passwords it lists, so they must be in plain text. Run
+ * <code>--help</code> for the list of options.
+ */
+public final class LoadGenerator {
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+
+        List<Workload.User> users = Workload.readUsers(options.users);
+        long start = System.nanoTime();
+        LoadStatistics statistics = new LoadStatistics(start + options.warmupSeconds * 1_000_000_000L);
+        Workload workload = new Workload(options, users, start);
+        System.out.printf("%d SMTP sessions, %d POP3 sessions, %d users, sizes %s, recipients %s, %s, %s%n",
+                options.sessions, options.popSessions, users.size(), options.sizes, options.recipients,
+                options.pipelining ? "pipelined" : "lockstep",
+                options.rate > 0 ? options.rate + " messages/s" : "as fast as possible");
+        System.out.printf("Warm-up %d s, measurement %d s%n", options.warmupSeconds, options.durationSeconds);
+
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < options.sessions; i++)
+                clients.execute(new SmtpLoadClient(workload, statistics));
+            for (int i = 0; i < options.popSessions; i++)
+                clients.execute(new PopLoadClient(workload, statistics, i, options.popSessions));
+            reportProgress(options, statistics, start, workload.deadline);
+        }
+        statistics.print(System.out, System.nanoTime());
+    }
+
+    /**
+     * Prints the number of messages sent and errors in each reporting interval, until the end of the run.
+     */
+    private static void reportProgress(Options options, LoadStatistics statistics, long start, long deadline)
+            throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(options.reportSeconds);
+        long next = start + interval;
+        long messages = 0;
+        long errors = 0;
+        while (next - deadline <= 0) {
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+            long currentMessages = statistics.progressMessages();
+            long currentErrors = statistics.progressErrors();
+            System.out.printf("%6d s %s %10.1f messages/s %8d errors%n", (next - start) / 1_000_000_000L,
+                    statistics.measuring() ? "      " : "warmup", (currentMessages - messages) / (double) options.reportSeconds,
+                    currentErrors - errors);
+            messages = currentMessages;
+            errors = currentErrors;
+            next += interval;
+        }
+    }
+
+    /**
+     * Command-line options, each given as <code>--name=value</code>.
+     */
+    static final class Options {
+
+        static final String USAGE = """
+                Options:
+                  --host=NAME               server host (localhost)
+                  --smtp-port=PORT          SMTP server port (2525)
+                  --pop-port=PORT           POP3 server port (1110)
+                  --users=FILE              users database of the server (users.txt)
+                  --sessions=N              concurrent SMTP sessions (10)
+                  --pop-sessions=N          concurrent POP3 sessions, 0 for none (0)
+                  --duration=SECONDS        measurement time (60)
+                  --warmup=SECONDS          time before measuring (10)
+                  --report=SECONDS          progress reporting interval (10)
+                  --rate=N                  messages per second over all sessions, 0 for as fast as possible (0)
+                  --messages-per-session=N  messages sent before reconnecting (10)
+                  --sizes=DISTRIBUTION      body sizes in bytes, as value:weight,... (2048:60,16384:30,262144:10)
+                  --recipients=DISTRIBUTION recipients per message, as value:weight,... (1:70,3:20,10:10)
+                  --pipelining              send the envelope of each message in a single write
+                  --poll-interval=MILLIS    pause between two POP3 polls of a session (1000)
+                  --keep                    do not delete retrieved messages
+                  --sender=ADDRESS          envelope sender (loadgen@example.com)
+                  --timeout=MILLIS          connection and reply timeout (30000)""";
+
+        String host = "localhost";
+        int smtpPort = 2525;
+        int popPort = 1110;
+        Path users = Path.of("users.txt");
+        int sessions = 10;
+        int popSessions = 0;
+        int durationSeconds = 60;
+        int warmupSeconds = 10;
+        int reportSeconds = 10;
+        double rate = 0;
+        int messagesPerSession = 10;
+        Distribution sizes = Distribution.parse("2048:60,16384:30,262144:10");
+        Distribution recipients = Distribution.parse("1:70,3:20,10:10");
+        boolean pipelining = false;
+        long pollIntervalMillis = 1000;
+        boolean keep = false;
+        String sender = "loadgen@example.com";
+        int timeoutMillis = 30000;
+        boolean help = false;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--"))
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                int equals = arg.indexOf('=');
+                String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+                String value = equals < 0 ? null : arg.substring(equals + 1);
+                try {
+                    options.set(name, value);
+                } catch (NumberFormatException | NullPointerException e) {
+                    throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                }
+            }
+            if (options.sessions < 0 || options.popSessions < 0 || options.durationSeconds <= 0 || options.warmupSeconds < 0
+                    || options.reportSeconds <= 0 || options.messagesPerSession <= 0 || options.rate < 0)
+                throw new IllegalArgumentException("Invalid options");
+            return options;
+        }
+
+        private void set(String name, String value) {
+            switch (name) {
+                case "host" -> host = value.trim();
+                case "smtp-port" -> smtpPort = Integer.parseInt(value);
+                case "pop-port" -> popPort = Integer.parseInt(value);
+                case "users" -> users = Path.of(value);
+                case "sessions" -> sessions = Integer.parseInt(value);
+                case "pop-sessions" -> popSessions = Integer.parseInt(value);
+                case "duration" -> durationSeconds = Integer.parseInt(value);
+                case "warmup" -> warmupSeconds = Integer.parseInt(value);
+                case "report" -> reportSeconds = Integer.parseInt(value);
+                case "rate" -> rate = Double.parseDouble(value);
+                case "messages-per-session" -> messagesPerSession = Integer.parseInt(value);
+                case "sizes" -> sizes = Distribution.parse(value);
+                case "recipients" -> recipients = Distribution.parse(value);
+                case "pipelining" -> pipelining = value == null || Boolean.parseBoolean(value);
+                case "poll-interval" -> pollIntervalMillis = Long.parseLong(value);
+                case "keep" -> keep = value == null || Boolean.parseBoolean(value);
+                case "sender" -> sender = value.trim();
+                case "timeout" -> timeoutMillis = Integer.parseInt(value);
+                case "help" -> help = true;
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+}
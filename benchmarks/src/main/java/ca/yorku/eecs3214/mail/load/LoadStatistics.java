@@ -0,0 +1,132 @@
+package ca.yorku.eecs3214.mail.load;
+
+import ca.yorku.eecs3214.mail.metrics.Histogram;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of a load run: the latency of every command, by protocol and verb, of whole SMTP transactions and of
+ * end-to-end delivery, and the number of messages, bytes and errors. Latencies are kept in the same histograms as the
+ * servers' own metrics. Nothing is recorded during the warm-up period, so the results only describe the server once
+ * it has reached a steady state.
+ */
+final class LoadStatistics {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final long measureStart;
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder messagesRetrieved = new LongAdder();
+    private final LongAdder bytesRetrieved = new LongAdder();
+    // Not limited to the measurement period, for the progress reports
+    private final LongAdder progressMessages = new LongAdder();
+    private final LongAdder progressErrors = new LongAdder();
+
+    /**
+     * @param measureStart The time at which the warm-up period ends, as returned by <code>System.nanoTime()</code>.
+     */
+    LoadStatistics(long measureStart) {
+        this.measureStart = measureStart;
+    }
+
+    /**
+     * Returns true once the warm-up period is over.
+     */
+    boolean measuring() {
+        return System.nanoTime() - measureStart >= 0;
+    }
+
+    /**
+     * Records the latency of an operation.
+     *
+     * @param protocol   The protocol, e.g., <code>smtp</code>.
+     * @param operation  The command verb, or the name of a larger operation, e.g., <code>transaction</code>.
+     * @param startNanos The start of the operation, as returned by <code>System.nanoTime()</code>.
+     */
+    void latency(String protocol, String operation, long startNanos) {
+        if (measuring())
+            histogram(protocol, operation).recordSince(startNanos);
+    }
+
+    private Histogram histogram(String protocol, String operation) {
+        return latencies.computeIfAbsent(protocol + " " + operation, key -> Metrics.histogram(
+                "load_operation_duration_seconds", "protocol=\"" + protocol + "\",operation=\"" + operation + "\"",
+                "Latency observed by the load generator.", 1e-9));
+    }
+
+    /**
+     * Records an error, i.e., an unexpected reply or a failed connection.
+     *
+     * @param protocol  The protocol, e.g., <code>smtp</code>.
+     * @param operation The command verb, or <code>connection</code> for I/O errors.
+     * @param reason    The reply code or the type of exception.
+     */
+    void error(String protocol, String operation, String reason) {
+        progressErrors.increment();
+        if (measuring())
+            errors.computeIfAbsent(protocol + " " + operation + " " + reason, key -> new LongAdder()).increment();
+    }
+
+    void messageSent(long bytes) {
+        progressMessages.increment();
+        if (measuring()) {
+            messagesSent.increment();
+            bytesSent.add(bytes);
+        }
+    }
+
+    void messageRetrieved(long bytes) {
+        if (measuring()) {
+            messagesRetrieved.increment();
+            bytesRetrieved.add(bytes);
+        }
+    }
+
+    long progressMessages() {
+        return progressMessages.sum();
+    }
+
+    long progressErrors() {
+        return progressErrors.sum();
+    }
+
+    /**
+     * Prints the results of the run.
+     *
+     * @param out     Where the results are printed.
+     * @param endTime The end of the measurement period, as returned by <code>System.nanoTime()</code>.
+     */
+    void print(PrintStream out, long endTime) {
+        double seconds = Math.max(1e-9, (endTime - measureStart) / 1e9);
+        out.printf("%nMeasured %.1f s%n", seconds);
+        out.printf("Messages sent:      %10d  %10.1f/s  %10.2f MB/s%n", messagesSent.sum(),
+                messagesSent.sum() / seconds, bytesSent.sum() / seconds / 1e6);
+        out.printf("Messages retrieved: %10d  %10.1f/s  %10.2f MB/s%n", messagesRetrieved.sum(),
+                messagesRetrieved.sum() / seconds, bytesRetrieved.sum() / seconds / 1e6);
+
+        out.printf("%n%-22s %10s %10s %10s %10s %10s %10s%n", "Latency (ms)", "count", "rate/s", "p50", "p99", "p99.9", "max");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.printf("%-22s %10d %10.1f", entry.getKey(), histogram.count(), histogram.count() / seconds);
+            for (double quantile : QUANTILES)
+                out.printf(" %10.3f", histogram.valueAt(quantile) / 1e6);
+            out.printf(" %10.3f%n", histogram.valueAt(1) / 1e6);
+        }
+
+        if (errors.isEmpty()) {
+            out.printf("%nNo errors%n");
+            return;
+        }
+        out.printf("%n%-40s %10s%n", "Errors", "count");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet())
+            out.printf("%-40s %10d%n", entry.getKey(), entry.getValue().sum());
+    }
+}
@@ -0,0 +1,130 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated POP3 client, polling the mailboxes of its share of the users in turn: it logs in, retrieves every
+ * message and, unless told to keep them, deletes them, and quits, then waits for the poll interval before polling the
+ * next mailbox. Clients poll disjoint sets of users, so they do not compete for the same maildrop lock.
+ * <p>
+ * Messages sent by the same run carry the time their SMTP transaction started, so each retrieval records the
+ * end-to-end delivery latency, which includes the time the message waited in the mailbox for the next poll.
+ */
+final class PopLoadClient implements Runnable {
+
+    private static final String PROTOCOL = "pop3";
+
+    private final Workload workload;
+    private final LoadStatistics statistics;
+    private final List<Workload.User> users = new ArrayList<>();
+
+    /**
+     * @param workload   The workload of the run.
+     * @param statistics Where results are recorded.
+     * @param index      The number of this client, from 0 to <code>clients - 1</code>.
+     * @param clients    The number of POP3 clients.
+     */
+    PopLoadClient(Workload workload, LoadStatistics statistics, int index, int clients) {
+        this.workload = workload;
+        this.statistics = statistics;
+        List<Workload.User> all = workload.users();
+        for (int i = index; i < all.size(); i += clients)
+            users.add(all.get(i));
+        if (users.isEmpty())
+            users.add(all.get(index % all.size()));
+    }
+
+    @Override
+    public void run() {
+        int next = 0;
+        while (System.nanoTime() - workload.deadline < 0) {
+            Workload.User user = users.get(next);
+            next = (next + 1) % users.size();
+            try {
+                poll(user);
+            } catch (IOException e) {
+                statistics.error(PROTOCOL, "connection", e.getClass().getSimpleName());
+            }
+            LockSupport.parkNanos(workload.pollIntervalNanos);
+        }
+    }
+
+    private void poll(Workload.User user) throws IOException {
+        long start = System.nanoTime();
+        try (ProtocolConnection connection = new ProtocolConnection(workload.host, workload.popPort, workload.timeoutMillis)) {
+            if (!reply(connection, "CONNECT", start)
+                    || !command(connection, "USER", "USER " + user.address())
+                    || !command(connection, "PASS", "PASS " + user.password()))
+                return;
+
+            start = System.nanoTime();
+            connection.write("STAT");
+            connection.flush();
+            String stat = connection.readLine();
+            statistics.latency(PROTOCOL, "STAT", start);
+            if (!expect(stat, "STAT"))
+                return;
+            int messages = Integer.parseInt(stat.split(" ")[1]);
+
+            for (int i = 1; i <= messages && System.nanoTime() - workload.deadline < 0; i++) {
+                retrieve(connection, i);
+                if (workload.deleteRetrieved)
+                    command(connection, "DELE", "DELE " + i);
+            }
+            // Deleted messages are removed when the session ends
+            command(connection, "QUIT", "QUIT");
+        }
+    }
+
+    private void retrieve(ProtocolConnection connection, int number) throws IOException {
+        long start = System.nanoTime();
+        connection.write("RETR " + number);
+        connection.flush();
+        if (!expect(connection.readLine(), "RETR"))
+            return;
+        long bytes = 0;
+        Long sent = null;
+        boolean inHeaders = true;
+        String line;
+        while (!(line = connection.readLine()).equals(".")) {
+            // Lines starting with a dot are dot-stuffed
+            bytes += line.length() + 2 - (line.startsWith(".") ? 1 : 0);
+            if (inHeaders) {
+                if (line.isEmpty())
+                    inHeaders = false;
+                else if (sent == null)
+                    sent = workload.sentTime(line);
+            }
+        }
+        statistics.latency(PROTOCOL, "RETR", start);
+        statistics.messageRetrieved(bytes);
+        if (sent != null)
+            statistics.latency(PROTOCOL, "delivery", sent);
+    }
+
+    private boolean command(ProtocolConnection connection, String verb, String command) throws IOException {
+        long start = System.nanoTime();
+        connection.write(command);
+        connection.flush();
+        return reply(connection, verb, start);
+    }
+
+    private boolean reply(ProtocolConnection connection, String verb, long start) throws IOException {
+        String reply = connection.readLine();
+        statistics.latency(PROTOCOL, verb, start);
+        return expect(reply, verb);
+    }
+
+    /**
+     * Checks that a reply is positive, counting an error if it is not.
+     */
+    private boolean expect(String reply, String verb) {
+        if (reply.startsWith("+OK"))
+            return true;
+        statistics.error(PROTOCOL, verb, "-ERR");
+        return false;
+    }
+}
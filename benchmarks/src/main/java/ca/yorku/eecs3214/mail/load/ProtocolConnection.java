@@ -0,0 +1,107 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Client side of a line-based protocol connection. Output is buffered until <code>flush()</code>, so a batch of
+ * pipelined commands goes out in a single write.
+ */
+final class ProtocolConnection implements Closeable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private byte[] line = new byte[256];
+
+    /**
+     * Connects to a server.
+     *
+     * @param host          The server's host name.
+     * @param port          The server's port.
+     * @param timeoutMillis The time after which connecting or waiting for a reply fails.
+     * @throws IOException If the connection cannot be established.
+     */
+    ProtocolConnection(String host, int port, int timeoutMillis) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            this.in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a command line to the output.
+     */
+    void write(String command) throws IOException {
+        out.write(command.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    /**
+     * Appends raw bytes to the output.
+     */
+    void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads one line.
+     *
+     * @return The line, without its line terminator.
+     * @throws EOFException If the server closed the connection.
+     */
+    String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                throw new EOFException("Connection closed by the server");
+            if (length == line.length)
+                line = Arrays.copyOf(line, line.length * 2);
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads a complete SMTP reply, which may span several lines.
+     *
+     * @return The last line of the reply, which starts with the reply code.
+     */
+    String readReply() throws IOException {
+        String reply;
+        do {
+            reply = readLine();
+        } while (reply.length() > 3 && reply.charAt(3) == '-');
+        return reply;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
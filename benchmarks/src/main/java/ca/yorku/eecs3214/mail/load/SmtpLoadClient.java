@@ -0,0 +1,171 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated SMTP client. It repeatedly connects, sends a number of messages in the same session, and quits, until
+ * the end of the run. Commands are either sent one at a time, each waiting for the previous reply (lockstep), or, with
+ * pipelining, the whole envelope (MAIL, RCPT and DATA) in a single write, in which case the latency of each command is
+ * measured from that write.
+ * <p>
+ * Besides each command, the latency of the end of data (the final dot, until the message is accepted) and of the whole
+ * transaction, from its start to the acceptance of the message, is recorded. Unexpected replies are counted as errors
+ * and the transaction is abandoned with RSET; a 421 reply or a broken connection ends the session, and the client
+ * connects again.
+ */
+final class SmtpLoadClient implements Runnable {
+
+    private static final String PROTOCOL = "smtp";
+    private static final byte[] END_OF_DATA = {'.', '\r', '\n'};
+    private static final long RECONNECT_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Workload workload;
+    private final LoadStatistics statistics;
+
+    SmtpLoadClient(Workload workload, LoadStatistics statistics) {
+        this.workload = workload;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void run() {
+        while (System.nanoTime() - workload.deadline < 0) {
+            try {
+                session();
+            } catch (IOException e) {
+                if (!(e instanceof SessionClosedException))
+                    statistics.error(PROTOCOL, "connection", e.getClass().getSimpleName());
+                // Do not hammer a server that refuses or drops connections
+                LockSupport.parkNanos(RECONNECT_DELAY);
+            }
+        }
+    }
+
+    private void session() throws IOException {
+        long start = System.nanoTime();
+        try (ProtocolConnection connection = new ProtocolConnection(workload.host, workload.smtpPort, workload.timeoutMillis)) {
+            expect(connection.readReply(), "220", "CONNECT");
+            statistics.latency(PROTOCOL, "CONNECT", start);
+            command(connection, "EHLO", "EHLO loadgen.example", "250");
+
+            for (int i = 0; i < workload.messagesPerSession; i++) {
+                long transactionStart = workload.awaitNextMessage();
+                if (transactionStart < 0)
+                    break;
+                if (!transaction(connection, transactionStart))
+                    command(connection, "RSET", "RSET", "250");
+            }
+            command(connection, "QUIT", "QUIT", "221");
+        }
+    }
+
+    /**
+     * Sends one message.
+     *
+     * @return true if the message was accepted, and false if the transaction failed and must be reset.
+     */
+    private boolean transaction(ProtocolConnection connection, long transactionStart) throws IOException {
+        List<String> recipients = workload.nextRecipients();
+        byte[] body = workload.nextBody();
+        byte[] headers = workload.headers(recipients, transactionStart);
+        String mail = "MAIL FROM:<" + workload.sender + "> SIZE=" + (headers.length + body.length);
+
+        int accepted = 0;
+        boolean dataAccepted;
+        if (workload.pipelining) {
+            long start = System.nanoTime();
+            connection.write(mail);
+            for (String recipient : recipients)
+                connection.write("RCPT TO:<" + recipient + ">");
+            connection.write("DATA");
+            connection.flush();
+            boolean mailAccepted = reply(connection, "MAIL", "250", start);
+            for (int i = 0; i < recipients.size(); i++) {
+                if (reply(connection, "RCPT", "250", start))
+                    accepted++;
+            }
+            dataAccepted = reply(connection, "DATA", "354", start);
+            if (!mailAccepted || accepted == 0) {
+                // The server should have refused DATA; if not, abandon the message
+                if (dataAccepted)
+                    abandonData(connection);
+                return false;
+            }
+        } else {
+            if (!command(connection, "MAIL", mail, "250"))
+                return false;
+            for (String recipient : recipients) {
+                if (command(connection, "RCPT", "RCPT TO:<" + recipient + ">", "250"))
+                    accepted++;
+            }
+            if (accepted == 0)
+                return false;
+            dataAccepted = command(connection, "DATA", "DATA", "354");
+        }
+        if (!dataAccepted)
+            return false;
+
+        long start = System.nanoTime();
+        connection.write(headers);
+        connection.write(body);
+        connection.write(END_OF_DATA);
+        connection.flush();
+        if (!reply(connection, "END-OF-DATA", "250", start))
+            return true; // The transaction is over either way
+        statistics.latency(PROTOCOL, "transaction", transactionStart);
+        statistics.messageSent(headers.length + body.length);
+        return true;
+    }
+
+    /**
+     * Ends a message that should not have been accepted, with no content.
+     */
+    private void abandonData(ProtocolConnection connection) throws IOException {
+        connection.write(END_OF_DATA);
+        connection.flush();
+        connection.readReply();
+    }
+
+    /**
+     * Sends a command and waits for its reply.
+     *
+     * @return true if the reply has the expected code, and false otherwise.
+     */
+    private boolean command(ProtocolConnection connection, String verb, String command, String code) throws IOException {
+        long start = System.nanoTime();
+        connection.write(command);
+        connection.flush();
+        return reply(connection, verb, code, start);
+    }
+
+    private boolean reply(ProtocolConnection connection, String verb, String code, long start) throws IOException {
+        String reply = connection.readReply();
+        statistics.latency(PROTOCOL, verb, start);
+        return expect(reply, code, verb);
+    }
+
+    /**
+     * Checks the code of a reply, counting an error if it is not the expected one.
+     *
+     * @throws SessionClosedException If the server is closing the connection (421).
+     */
+    private boolean expect(String reply, String code, String verb) throws SessionClosedException {
+        if (reply.startsWith(code))
+            return true;
+        String replyCode = reply.length() >= 3 ? reply.substring(0, 3) : reply;
+        statistics.error(PROTOCOL, verb, replyCode);
+        if (replyCode.equals("421"))
+            throw new SessionClosedException();
+        return false;
+    }
+
+    /**
+     * Thrown when the server closes the session with a 421 reply.
+     */
+    private static class SessionClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
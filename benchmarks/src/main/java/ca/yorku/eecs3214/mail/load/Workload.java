@@ -0,0 +1,180 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What the load clients do, shared by all of them: the users messages are sent to and retrieved from, the
+ * distributions of message sizes and recipients, and the schedule of new messages.
+ * <p>
+ * Every message carries an <code>X-Load-Sent</code> header with the identifier of the run and the time its transaction
+ * started, so that a POP3 client of the same run can measure how long it took to be delivered. Message bodies are built
+ * once per size, as lines of text that never start with a dot.
+ */
+final class Workload {
+
+    private static final int LINE_LENGTH = 76;
+    static final String SENT_HEADER = "X-Load-Sent: ";
+
+    final String host;
+    final int smtpPort;
+    final int popPort;
+    final int timeoutMillis;
+    final int messagesPerSession;
+    final boolean pipelining;
+    final long pollIntervalNanos;
+    final boolean deleteRetrieved;
+    final String sender;
+    final long deadline;
+    final long runId = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+
+    private final List<User> users;
+    private final Distribution sizes;
+    private final Distribution recipients;
+    private final Map<Long, byte[]> bodies = new HashMap<>();
+    private final long intervalNanos;
+    private final AtomicLong nextStart;
+
+    Workload(LoadGenerator.Options options, List<User> users, long start) {
+        this.host = options.host;
+        this.smtpPort = options.smtpPort;
+        this.popPort = options.popPort;
+        this.timeoutMillis = options.timeoutMillis;
+        this.messagesPerSession = options.messagesPerSession;
+        this.pipelining = options.pipelining;
+        this.pollIntervalNanos = options.pollIntervalMillis * 1_000_000L;
+        this.deleteRetrieved = !options.keep;
+        this.sender = options.sender;
+        this.users = users;
+        this.sizes = options.sizes;
+        this.recipients = options.recipients;
+        this.deadline = start + (options.warmupSeconds + options.durationSeconds) * 1_000_000_000L;
+        this.intervalNanos = options.rate > 0 ? (long) (1e9 / options.rate) : 0;
+        this.nextStart = new AtomicLong(start);
+        for (long size : sizes.values())
+            bodies.put(size, body(size));
+    }
+
+    /**
+     * A user of the users database, with a password that must be in plain text to be used by the POP3 clients.
+     */
+    record User(String address, String password) {
+    }
+
+    /**
+     * Reads the users database, one user per line with the user's address and password separated by a space.
+     */
+    static List<User> readUsers(Path file) throws IOException {
+        List<User> users = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            int space = line.indexOf(' ');
+            if (space > 0)
+                users.add(new User(line.substring(0, space), line.substring(space + 1).trim()));
+        }
+        if (users.isEmpty())
+            throw new IOException("No users in " + file);
+        return users;
+    }
+
+    List<User> users() {
+        return users;
+    }
+
+    /**
+     * Waits until the next message may be sent. Without a target rate, messages are sent as fast as the server
+     * replies; with a rate, messages are started on a fixed schedule shared by all clients, and the returned time is
+     * the scheduled start, so the latency of a message includes any time it waited behind earlier slow ones.
+     *
+     * @return The time at which the message is considered started, or -1 if the run is over.
+     */
+    long awaitNextMessage() {
+        long now = System.nanoTime();
+        if (intervalNanos == 0)
+            return now - deadline < 0 ? now : -1;
+        long start = nextStart.getAndAdd(intervalNanos);
+        if (start - deadline >= 0)
+            return -1;
+        while ((now = System.nanoTime()) - start < 0)
+            LockSupport.parkNanos(start - now);
+        return start;
+    }
+
+    /**
+     * Picks the recipients of a new message: a number drawn from the recipient distribution of distinct users.
+     */
+    List<String> nextRecipients() {
+        int count = (int) Math.max(1, Math.min(recipients.next(), users.size()));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> addresses = new ArrayList<>(count);
+        while (addresses.size() < count) {
+            String address = users.get(random.nextInt(users.size())).address();
+            if (!addresses.contains(address))
+                addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Picks the body of a new message, with a size drawn from the size distribution. The array must not be modified.
+     */
+    byte[] nextBody() {
+        return bodies.get(sizes.next());
+    }
+
+    /**
+     * Returns the headers of a message, including the empty line that separates them from the body.
+     */
+    byte[] headers(List<String> recipients, long startNanos) {
+        return ("From: <" + sender + ">\r\n" +
+                "To: <" + recipients.get(0) + ">\r\n" +
+                "Subject: Load test message\r\n" +
+                SENT_HEADER + runId + " " + startNanos + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the time a message of this run was started, from its <code>X-Load-Sent</code> header line.
+     *
+     * @return The time, as returned by <code>System.nanoTime()</code>, or null if the line is not such a header or the
+     * message was sent by another run.
+     */
+    Long sentTime(String headerLine) {
+        if (!headerLine.regionMatches(true, 0, SENT_HEADER, 0, SENT_HEADER.length()))
+            return null;
+        String[] parts = headerLine.substring(SENT_HEADER.length()).trim().split(" ");
+        try {
+            return parts.length == 2 && Long.parseLong(parts[0]) == runId ? Long.parseLong(parts[1]) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static byte[] body(long size) {
+        // A non-empty body needs at least a line terminator
+        byte[] body = new byte[size == 1 ? 2 : (int) size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < body.length; i++) {
+            int column = i % (LINE_LENGTH + 2);
+            body[i] = column == LINE_LENGTH ? (byte) '\r' : column == LINE_LENGTH + 1 ? (byte) '\n' :
+                    column % 8 == 7 ? (byte) ' ' : (byte) ('a' + random.nextInt(26));
+        }
+        if (body.length >= 2) {
+            // The last line ends with CRLF too, and no line has a bare CR
+            body[body.length - 2] = '\r';
+            body[body.length - 1] = '\n';
+            if (body.length >= 3 && body[body.length - 3] == '\r')
+                body[body.length - 3] = 'x';
+        }
+        return body;
+    }
+}
@@ -0,0 +1,120 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.benchmarks.BenchmarkStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the SMTP protocol state machine, independently of the network: parsing and handling a typical sequence of
+ * commands, and framing and spooling message content after DATA. This class is in the same package as
+ * {@link SmtpSession} so it can drive the session directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmail.smtp.maxMessageSize=" + Long.MAX_VALUE)
+@State(Scope.Thread)
+public class SmtpSessionBenchmark {
+
+    // A complete transaction without DATA, leaving the session ready for the next one
+    private static final String[] COMMANDS = {
+            "EHLO client.example",
+            "MAIL FROM:<sender@example.com> SIZE=4096 BODY=8BITMIME",
+            "RCPT TO:<" + BenchmarkStore.user(1) + ">",
+            "RCPT TO:<" + BenchmarkStore.user(2) + ">",
+            "NOOP",
+            "VRFY " + BenchmarkStore.user(3),
+            "RSET",
+    };
+
+    private static final int LINES_PER_CHUNK = 64;
+
+    @Param({"78"})
+    private int lineLength;
+
+    private SmtpSession session;
+    private SmtpLineReader reader;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        BenchmarkStore.prepare();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < LINES_PER_CHUNK; i++) {
+            // Some lines are dot-stuffed, as a client would send them
+            content.append(i % 16 == 0 ? ".." : "x");
+            content.append("y".repeat(lineLength - 1)).append("\r\n");
+        }
+        chunk = content.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Setup(Level.Iteration)
+    public void startSession() {
+        session = new SmtpSession();
+        reader = new SmtpLineReader();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeSession() {
+        session.close();
+    }
+
+    /**
+     * Handles the commands of one transaction, excluding DATA.
+     */
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void commands(Blackhole blackhole) {
+        for (String command : COMMANDS)
+            blackhole.consume(session.processLine(command));
+    }
+
+    /**
+     * Receives one line of message content, including framing, dot-unstuffing and writing it to the spool file. The
+     * whole iteration is spent in a single message, so the cost of delivery is not included.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINES_PER_CHUNK)
+    public void dataLine(DataState data) throws IOException {
+        ByteBuffer buffer = data.reader.buffer();
+        buffer.put(chunk);
+        data.reader.process(data.session, response -> {
+            throw new IllegalStateException("Unexpected response while receiving data: "
+                    + new String(response, StandardCharsets.UTF_8).trim());
+        });
+    }
+
+    /**
+     * A session that has accepted DATA and is receiving message content.
+     */
+    @State(Scope.Thread)
+    public static class DataState {
+        private SmtpSession session;
+        private SmtpLineReader reader;
+
+        @Setup(Level.Iteration)
+        public void startData() {
+            BenchmarkStore.prepare();
+            session = new SmtpSession();
+            reader = new SmtpLineReader();
+            for (String command : new String[] {"EHLO client.example", "MAIL FROM:<sender@example.com>",
+                    "RCPT TO:<" + BenchmarkStore.user(1) + ">", "DATA"}) {
+                session.processLine(command);
+            }
+            if (!session.isReceivingData())
+                throw new IllegalStateException("DATA was not accepted");
+        }
+
+        @TearDown(Level.Iteration)
+        public void discard() {
+            // Discards the spooled content
+            session.close();
+        }
+    }
+}